@@ -0,0 +1,73 @@
+package com.mtvi.plateng.subversion;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Creates and removes the files benchmarks work on.
+ */
+final class BenchmarkFiles {
+
+    private BenchmarkFiles() {
+
+    }
+
+    /**
+     * @param prefix
+     *            The start of the directory's name.
+     * @return a new empty directory in the temporary directory.
+     * @throws IOException
+     */
+    static File createTempDir(final String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Write a file of random contents.
+     *
+     * @param file
+     *            The file to write.
+     * @param size
+     *            The number of bytes to write.
+     * @param seed
+     *            The seed of the contents, equal seeds give equal contents.
+     * @throws IOException
+     */
+    static void write(final File file, final long size, final long seed)
+        throws IOException {
+        Random random = new Random(seed);
+        byte[] buffer = new byte[64 * 1024];
+        OutputStream out = new FileOutputStream(file);
+        try {
+            for (long left = size; left > 0; left -= buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(left, buffer.length));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Delete a file or a directory and everything below it.
+     *
+     * @param file
+     *            The file or directory.
+     */
+    static void delete(final File file) {
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,119 @@
+package com.mtvi.plateng.subversion;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tmatesoft.svn.core.SVNDepth;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNProperties;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.internal.io.fs.FSRepositoryFactory;
+import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+import org.tmatesoft.svn.core.wc.SVNClientManager;
+import org.tmatesoft.svn.core.wc.SVNCommitClient;
+import org.tmatesoft.svn.core.wc.SVNCommitPacket;
+import org.tmatesoft.svn.core.wc.SVNRevision;
+
+/**
+ * Collecting the commit items of a working copy of a large destination in
+ * which a few files have been staged: walking the whole working copy, as
+ * publishes used to, against collecting only the staged files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CommitCollectBenchmark {
+
+    /**
+     * The number of files in the destination.
+     */
+    @Param( { "50000" })
+    public int files;
+
+    /**
+     * The number of files staged.
+     */
+    @Param( { "10", "100" })
+    public int staged;
+
+    private File dir;
+
+    private File workingCopy;
+
+    private File[] stagedFiles;
+
+    private SVNClientManager clientManager;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SVNException {
+        FSRepositoryFactory.setup();
+        dir = BenchmarkFiles.createTempDir("collect");
+        SVNURL root = SVNRepositoryFactory.createLocalRepository(new File(dir,
+            "repository"), true, false);
+        File content = new File(dir, "content");
+        content.mkdirs();
+        for (int i = 0; i < files; i++) {
+            BenchmarkFiles.write(new File(content, "file" + i + ".bin"), 64, i);
+        }
+        clientManager = SVNClientManager.newInstance();
+        SVNURL destination = root.appendPath("destination", false);
+        clientManager.getCommitClient().doImport(content, destination,
+            "setup", new SVNProperties(), false, false, SVNDepth.INFINITY);
+        BenchmarkFiles.delete(content);
+
+        workingCopy = new File(dir, "wc");
+        clientManager.getUpdateClient().doCheckout(destination, workingCopy,
+            SVNRevision.HEAD, SVNRevision.HEAD, SVNDepth.INFINITY, false);
+        stagedFiles = new File[staged];
+        for (int i = 0; i < staged; i++) {
+            stagedFiles[i] = new File(workingCopy, "file" + i * (files / staged)
+                + ".bin");
+            BenchmarkFiles.write(stagedFiles[i], 64, files + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        clientManager.dispose();
+        BenchmarkFiles.delete(dir);
+    }
+
+    @Benchmark
+    public int collectWorkingCopy() throws SVNException {
+        return collect(new File[] { workingCopy }, SVNDepth.INFINITY);
+    }
+
+    @Benchmark
+    public int collectStaged() throws SVNException {
+        return collect(stagedFiles, SVNDepth.EMPTY);
+    }
+
+    private int collect(final File[] paths, final SVNDepth depth)
+        throws SVNException {
+        SVNCommitClient client = clientManager.getCommitClient();
+        SVNCommitPacket packet = client.doCollectCommitItems(paths, false,
+            true, depth, null);
+        try {
+            return packet.getCommitItems().length;
+        } finally {
+            packet.dispose();
+        }
+    }
+}
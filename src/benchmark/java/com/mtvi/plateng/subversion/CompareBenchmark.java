@@ -0,0 +1,88 @@
+package com.mtvi.plateng.subversion;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Comparing the contents of two equal files, as done for every matched file
+ * that has no usable working copy checksum.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompareBenchmark {
+
+    /**
+     * The size of the files, in bytes.
+     */
+    @Param( { "1024", "1048576", "16777216", "134217728" })
+    public long size;
+
+    private File dir;
+
+    private File file1;
+
+    private File file2;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkFiles.createTempDir("compare");
+        file1 = new File(dir, "file1");
+        file2 = new File(dir, "file2");
+        BenchmarkFiles.write(file1, size, 1);
+        BenchmarkFiles.write(file2, size, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.delete(dir);
+    }
+
+    @Benchmark
+    public boolean fileContentsEquals() {
+        return SVNForceImport.fileContentsEquals(file1, file2);
+    }
+
+    @Benchmark
+    public boolean inputStreamEquals() throws IOException {
+        InputStream is1 = new BufferedInputStream(new FileInputStream(file1));
+        InputStream is2 = new BufferedInputStream(new FileInputStream(file2));
+        try {
+            return SVNForceImport.inputStreamEquals(is1, is2);
+        } finally {
+            is1.close();
+            is2.close();
+        }
+    }
+
+    @Benchmark
+    public FileComparator.Update update() {
+        return FileComparator.update(file1, file2);
+    }
+
+    @Benchmark
+    public String digest() throws IOException {
+        return ContentDigest.digest(file1, ContentDigest.MD5);
+    }
+}
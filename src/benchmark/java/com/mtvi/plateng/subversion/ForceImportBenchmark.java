@@ -0,0 +1,135 @@
+package com.mtvi.plateng.subversion;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.internal.io.fs.FSRepositoryFactory;
+import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+import org.tmatesoft.svn.core.wc.SVNClientManager;
+
+/**
+ * A whole publish to a local file:// repository, republishing a target
+ * directory of which some files changed since the last publish.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ForceImportBenchmark {
+
+    /**
+     * The number of files published.
+     */
+    @Param( { "100", "1000" })
+    public int files;
+
+    /**
+     * The percentage of files changed before each publish.
+     */
+    @Param( { "0", "10" })
+    public int changed;
+
+    /**
+     * How the publish is committed: through working copies, in a single
+     * commit, or without working copies.
+     */
+    @Param( { "workingCopy", "atomic", "remoteOnly" })
+    public String mode;
+
+    private static final PrintStream NOWHERE = new PrintStream(
+        new OutputStream() {
+            @Override
+            public void write(final int b) {
+            }
+        });
+
+    private File dir;
+
+    private File target;
+
+    private String url;
+
+    private ArrayList<ImportItem> items;
+
+    private SVNSessionPool sessions;
+
+    private long seed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SVNException {
+        FSRepositoryFactory.setup();
+        dir = BenchmarkFiles.createTempDir("publish");
+        File repository = new File(dir, "repository");
+        SVNURL root = SVNRepositoryFactory.createLocalRepository(repository,
+            true, false);
+        SVNClientManager clientManager = SVNClientManager.newInstance();
+        try {
+            clientManager.getCommitClient().doMkDir(
+                new SVNURL[] { root.appendPath("project", false) }, "setup");
+        } finally {
+            clientManager.dispose();
+        }
+        url = root.appendPath("project", false).toString();
+
+        target = new File(dir, "target");
+        target.mkdirs();
+        for (int i = 0; i < files; i++) {
+            BenchmarkFiles.write(new File(target, "file" + i + ".bin"),
+                4096 + i % 64 * 1024, i);
+        }
+        items = new ArrayList<ImportItem>();
+        items.add(new ImportItem(".*\\.bin", "releases/_MAJOR_", null));
+        sessions = new SVNSessionPool();
+        seed = files;
+
+        // the first publish imports everything
+        publish();
+    }
+
+    @Setup(Level.Invocation)
+    public void change() throws IOException {
+        int count = files * changed / 100;
+        for (int i = 0; i < count; i++) {
+            BenchmarkFiles.write(new File(target, "file" + i + ".bin"),
+                4096 + i % 64 * 1024, ++seed);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sessions.close();
+        BenchmarkFiles.delete(dir);
+    }
+
+    @Benchmark
+    public boolean publish() {
+        PublishOptions options = new PublishOptions();
+        options.setAtomicCommit(!"workingCopy".equals(mode));
+        options.setRemoteOnly("remoteOnly".equals(mode));
+        options.setDigestCache(new File(dir, "digests.txt"));
+        return SVNForceImport.forceImport(url, null, null, target
+            .getAbsolutePath(), items, null, null, null, null, null, NOWHERE,
+            options, sessions);
+    }
+}
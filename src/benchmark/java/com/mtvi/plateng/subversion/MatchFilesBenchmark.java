@@ -0,0 +1,72 @@
+package com.mtvi.plateng.subversion;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Finding the files of an item in a large target directory, by name and by
+ * path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MatchFilesBenchmark {
+
+    /**
+     * The number of files in the target directory.
+     */
+    @Param( { "1000", "10000", "50000" })
+    public int files;
+
+    /**
+     * The pattern matched.
+     */
+    @Param( { ".*\\.jar", "artifact-1.*\\.jar", "glob:lib/**/*.jar" })
+    public String pattern;
+
+    private File target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        target = BenchmarkFiles.createTempDir("match");
+        // half at the top, half spread over a directory tree
+        File lib = new File(target, "lib");
+        for (int i = 0; i < files; i++) {
+            File dir = i % 2 == 0 ? target : new File(lib, "d" + (i % 100));
+            dir.mkdirs();
+            String name = "artifact-" + i + (i % 4 == 0 ? ".pom" : ".jar");
+            BenchmarkFiles.write(new File(dir, name), 0, i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.delete(target);
+    }
+
+    @Benchmark
+    public void matchFiles(final Blackhole bh) {
+        for (File file : SVNForceImport.matchFiles(pattern, target)) {
+            bh.consume(file);
+        }
+    }
+}
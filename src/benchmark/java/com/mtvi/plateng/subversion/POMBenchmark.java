@@ -0,0 +1,119 @@
+package com.mtvi.plateng.subversion;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading the version out of a pom and replacing the version variables of an
+ * item, as done once per publish and once per item.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class POMBenchmark {
+
+    /**
+     * The number of dependencies in the pom.
+     */
+    @Param( { "5", "2000" })
+    public int dependencies;
+
+    /**
+     * true to read a pom that has not changed since it was last read, false
+     * to read a changed pom every time.
+     */
+    @Param( { "false", "true" })
+    public boolean cached;
+
+    private File dir;
+
+    private File pom;
+
+    private long modified;
+
+    private SimplePOMParser parsed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkFiles.createTempDir("pom");
+        pom = new File(dir, "pom.xml");
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(
+            new FileOutputStream(pom), "UTF-8"));
+        try {
+            out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            out.println("<project>");
+            out.println("  <modelVersion>4.0.0</modelVersion>");
+            out.println("  <dependencies>");
+            for (int i = 0; i < dependencies; i++) {
+                out.println("    <dependency><groupId>g" + i
+                    + "</groupId><artifactId>a" + i
+                    + "</artifactId><version>1." + i
+                    + "</version></dependency>");
+            }
+            out.println("  </dependencies>");
+            out.println("  <version>2.11.105</version>");
+            out.println("</project>");
+        } finally {
+            out.close();
+        }
+        modified = pom.lastModified();
+        parsed = newParser();
+        parsed.parse(pom);
+    }
+
+    @Setup(Level.Invocation)
+    public void touch() {
+        if (!cached) {
+            // a new modification time makes the pom a cache miss
+            modified += 1000;
+            pom.setLastModified(modified);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.delete(dir);
+    }
+
+    @Benchmark
+    public int parse() {
+        SimplePOMParser spp = newParser();
+        spp.parse(pom);
+        return spp.getMajor() + spp.getMinor() + spp.getPatch();
+    }
+
+    @Benchmark
+    public String variableReplace() {
+        return SVNForceImport.variableReplace(parsed,
+            "_ROOT_releases/_MAJOR_._MINOR_/_MAJOR_._MINOR_._PATCH_/");
+    }
+
+    private static SimplePOMParser newParser() {
+        SimplePOMParser spp = new SimplePOMParser();
+        spp.setMajorPath("project.version[0]");
+        spp.setMinorPath("project.version[1]");
+        spp.setPatchPath("project.version[2]");
+        return spp;
+    }
+}
@@ -0,0 +1,400 @@
+package com.mtvi.plateng.subversion;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.internal.io.fs.FSRepositoryFactory;
+import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+import org.tmatesoft.svn.core.wc.SVNClientManager;
+
+/**
+ * Publishes synthetic artifact trees over and over, from several publishers
+ * at once, and reports throughput, latency percentiles and the disk space the
+ * working copies take.
+ *
+ * Every publisher stands for a job: it has its own target directory, changes
+ * part of its files before each round and publishes them through
+ * SVNForceImport with the session pool and coordinator a Jenkins instance
+ * would share between jobs. Publishers can share one target directory, and
+ * so one svntemp, and one destination to see how they contend. Like jobs
+ * publishing to different places, publishers with their own destinations go
+ * through the coordinator independently and publish at the same time; only
+ * publishers sharing a destination wait for each other, unless the
+ * coordinator is bypassed.
+ *
+ * Options, all of the form --name=value:
+ * <ul>
+ * <li>files: files per publisher (100)</li>
+ * <li>size: mean file size in bytes (65536)</li>
+ * <li>distribution: fixed, uniform or lognormal (lognormal)</li>
+ * <li>change: fraction of files changed before each round (0.1)</li>
+ * <li>rounds: publishes per publisher (10)</li>
+ * <li>publishers: publishers running at once (1)</li>
+ * <li>mode: workingCopy, atomic or remoteOnly (workingCopy)</li>
+ * <li>sharedTarget: true for every publisher to use one target (false)</li>
+ * <li>sharedDestination: true for every publisher to publish to one path
+ * (false)</li>
+ * <li>coordinator: false to publish without the coordinator, even to a
+ * shared destination (true)</li>
+ * <li>url: the repository to publish to, a new file:// repository if not
+ * given</li>
+ * <li>svnserve: true to serve the new repository with a local svnserve when
+ * one is on the path (false)</li>
+ * <li>dir: where trees and the repository are created (a temporary
+ * directory)</li>
+ * </ul>
+ *
+ * Run it through the benchmarks profile, for example:
+ *
+ * <pre>
+ * mvn -Pbenchmarks test-compile exec:exec
+ *     -Dbenchmark.main=com.mtvi.plateng.subversion.PublishLoadHarness
+ *     -Dbenchmark.args=&quot;--files=1000 --publishers=4&quot;
+ * </pre>
+ */
+public class PublishLoadHarness {
+
+    private static final PrintStream NOWHERE = new PrintStream(
+        new OutputStream() {
+            @Override
+            public void write(final int b) {
+            }
+        });
+
+    private final Map<String, String> options;
+
+    private final int files;
+    private final long size;
+    private final String distribution;
+    private final double change;
+    private final int rounds;
+    private final int publishers;
+    private final String mode;
+    private final boolean sharedTarget;
+    private final boolean sharedDestination;
+    private final boolean coordinated;
+
+    private final SVNSessionPool sessions = new SVNSessionPool();
+    private final PublishCoordinator coordinator = new PublishCoordinator();
+    private final List<Long> latencies = Collections
+        .synchronizedList(new ArrayList<Long>());
+    private final PublishMetrics metrics = new PublishMetrics();
+    private final List<String> errors = new ArrayList<String>();
+
+    private File dir;
+    private String url;
+    private Process svnserve;
+    private int failures;
+
+    PublishLoadHarness(final Map<String, String> options) {
+        this.options = options;
+        files = Integer.parseInt(option("files", "100"));
+        size = Long.parseLong(option("size", "65536"));
+        distribution = option("distribution", "lognormal");
+        change = Double.parseDouble(option("change", "0.1"));
+        rounds = Integer.parseInt(option("rounds", "10"));
+        publishers = Integer.parseInt(option("publishers", "1"));
+        mode = option("mode", "workingCopy");
+        sharedTarget = Boolean.parseBoolean(option("sharedTarget", "false"));
+        sharedDestination = Boolean.parseBoolean(option("sharedDestination",
+            "false"));
+        coordinated = Boolean.parseBoolean(option("coordinator", "true"));
+    }
+
+    public static void main(final String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                System.err.println("Options are given as --name=value: "
+                    + arg);
+                System.exit(1);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg
+                .indexOf('=') + 1));
+        }
+        new PublishLoadHarness(options).run();
+    }
+
+    private String option(final String name, final String defaultValue) {
+        String value = options.get(name);
+        return null == value ? defaultValue : value;
+    }
+
+    void run() throws Exception {
+        dir = options.containsKey("dir") ? new File(options.get("dir"))
+            : BenchmarkFiles.createTempDir("harness");
+        dir.mkdirs();
+        try {
+            url = options.containsKey("url") ? options.get("url")
+                : createRepository();
+            System.out.println("Publishing to " + url);
+
+            final List<Publisher> all = new ArrayList<Publisher>();
+            for (int i = 0; i < publishers; i++) {
+                all.add(new Publisher(i));
+            }
+            // the first round imports everything and is not measured
+            for (Publisher publisher : all) {
+                publisher.publish(false);
+            }
+
+            long started = System.nanoTime();
+            final CountDownLatch done = new CountDownLatch(all.size());
+            for (final Publisher publisher : all) {
+                new Thread("publisher " + publisher.number) {
+                    @Override
+                    public void run() {
+                        int round = 0;
+                        try {
+                            for (; round < rounds; round++) {
+                                publisher.change();
+                                publisher.publish(true);
+                            }
+                        } catch (IOException ioe) {
+                            // the rounds left are not published
+                            failed(rounds - round, "publisher "
+                                + publisher.number + " stopped in round "
+                                + (round + 1) + ": " + ioe);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }.start();
+            }
+            done.await();
+            report(System.nanoTime() - started);
+        } finally {
+            sessions.close();
+            if (null != svnserve) {
+                svnserve.destroy();
+            }
+            if (!options.containsKey("dir")) {
+                BenchmarkFiles.delete(dir);
+            }
+        }
+    }
+
+    /**
+     * Count publishes that failed or were not made, in the summary.
+     *
+     * @param error
+     *            why, null if the publish itself reported failure.
+     */
+    private synchronized void failed(final int publishes, final String error) {
+        failures += publishes;
+        if (null != error) {
+            errors.add(error);
+        }
+    }
+
+    private String createRepository() throws SVNException, IOException {
+        FSRepositoryFactory.setup();
+        File repository = new File(dir, "repository");
+        SVNURL root = SVNRepositoryFactory.createLocalRepository(repository,
+            true, false);
+        if (Boolean.parseBoolean(option("svnserve", "false"))) {
+            String served = serve(repository);
+            if (null != served) {
+                root = SVNURL.parseURIEncoded(served);
+            }
+        }
+        SVNClientManager clientManager = SVNClientManager.newInstance();
+        try {
+            clientManager.getCommitClient().doMkDir(
+                new SVNURL[] { root.appendPath("project", false) }, "setup");
+        } finally {
+            clientManager.dispose();
+        }
+        return root.appendPath("project", false).toString();
+    }
+
+    /**
+     * Serve the repository with svnserve, allowing anonymous commits.
+     *
+     * @return the url of the served repository, null if svnserve could not
+     *         be started.
+     */
+    private String serve(final File repository) throws IOException {
+        PrintWriter conf = new PrintWriter(new FileWriter(new File(
+            repository, "conf" + File.separator + "svnserve.conf")));
+        try {
+            conf.println("[general]");
+            conf.println("anon-access = write");
+        } finally {
+            conf.close();
+        }
+        int port = 20000 + new Random().nextInt(10000);
+        try {
+            svnserve = new ProcessBuilder("svnserve", "--daemon",
+                "--foreground", "--listen-host", "127.0.0.1", "--listen-port",
+                Integer.toString(port), "--root", dir.getAbsolutePath())
+                .redirectErrorStream(true).start();
+            // give it time to listen
+            Thread.sleep(500);
+            svnserve.exitValue();
+            System.out.println("svnserve exited, using file://");
+            svnserve = null;
+            return null;
+        } catch (IllegalThreadStateException running) {
+            return "svn://127.0.0.1:" + port + "/repository";
+        } catch (IOException ioe) {
+            System.out.println("svnserve not available, using file://");
+            return null;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private void report(final long nanos) {
+        List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+        double seconds = nanos / 1e9;
+        System.out.println(String.format(Locale.ROOT,
+            "%d publishes by %d publishers in %.1f s, %d failed",
+            sorted.size(), publishers, seconds, failures));
+        System.out.println(String.format(Locale.ROOT,
+            "throughput: %.2f publishes/s, %.2f MB/s sent", sorted.size()
+                / seconds, metrics.get(PublishMetrics.Counter.BYTES_SENT)
+                / seconds / (1024 * 1024)));
+        System.out.println(String.format(Locale.ROOT,
+            "latency: p50 %d ms, p99 %d ms, max %d ms", percentile(sorted,
+                50), percentile(sorted, 99), sorted.isEmpty() ? 0 : sorted
+                .get(sorted.size() - 1)));
+        System.out.println("working copies: " + diskUsage(dir, false) / 1024
+            + " KB in svntemp directories");
+        System.out.println("phases (ms): " + metrics.getPhases());
+        System.out.println("counters: " + metrics.getCounters());
+        for (String error : errors) {
+            System.out.println("error: " + error);
+        }
+    }
+
+    private static long percentile(final List<Long> sorted, final int p) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(rank, 0));
+    }
+
+    /**
+     * @return the size of the files in svntemp directories below file.
+     */
+    private static long diskUsage(final File file, final boolean inSvnTemp) {
+        File[] children = file.listFiles();
+        if (null == children) {
+            return inSvnTemp ? file.length() : 0;
+        }
+        long total = 0;
+        for (File child : children) {
+            total += diskUsage(child, inSvnTemp
+                || "svntemp".equals(child.getName()));
+        }
+        return total;
+    }
+
+    /**
+     * One job publishing its own tree.
+     */
+    private class Publisher {
+        private final int number;
+        private final File target;
+        private final ArrayList<ImportItem> items = new ArrayList<ImportItem>();
+        private final Random random;
+        private final String prefix;
+        private final String destination;
+
+        Publisher(final int number) throws IOException {
+            this.number = number;
+            this.random = new Random(number);
+            this.target = new File(dir, sharedTarget ? "target" : "target"
+                + number);
+            this.prefix = "p" + number + "-";
+            target.mkdirs();
+            for (int i = 0; i < files; i++) {
+                write(i);
+            }
+            destination = sharedDestination ? "artifacts" : "artifacts"
+                + number;
+            items.add(new ImportItem(prefix + ".*", destination, null));
+        }
+
+        void change() throws IOException {
+            for (int i = 0; i < files; i++) {
+                if (random.nextDouble() < change) {
+                    write(i);
+                }
+            }
+        }
+
+        void publish(final boolean measure) {
+            PublishOptions publishOptions = new PublishOptions();
+            publishOptions.setAtomicCommit(!"workingCopy".equals(mode));
+            publishOptions.setRemoteOnly("remoteOnly".equals(mode));
+            publishOptions.setDigestCache(new File(dir, "digests" + number
+                + ".txt"));
+            if (measure) {
+                publishOptions.setMetrics(metrics);
+            }
+
+            long started = System.nanoTime();
+            // serialized per destination, as jobs are per svnUrl
+            PublishCoordinator.Ticket ticket = coordinated ? coordinator
+                .enter(url + "/" + destination, "publisher" + number) : null;
+            boolean published = false;
+            try {
+                if (null != ticket) {
+                    coordinator.acquire(ticket, false);
+                }
+                published = SVNForceImport.forceImport(url, null, null, target
+                    .getAbsolutePath(), items, null, null, null, null, null,
+                    NOWHERE, publishOptions, sessions);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (null != ticket) {
+                    coordinator.exit(ticket);
+                }
+            }
+            if (measure) {
+                latencies.add((System.nanoTime() - started) / 1000000L);
+                if (!published) {
+                    failed(1, null);
+                }
+            }
+        }
+
+        private void write(final int i) throws IOException {
+            BenchmarkFiles.write(new File(target, prefix + i + ".bin"),
+                nextSize(), random.nextLong());
+        }
+
+        private long nextSize() {
+            if ("fixed".equals(distribution)) {
+                return size;
+            }
+            if ("uniform".equals(distribution)) {
+                return (long) (random.nextDouble() * 2 * size);
+            }
+            // lognormal with the given mean: many small files, a few large
+            double sigma = 1.0;
+            double mu = Math.log(size) - sigma * sigma / 2;
+            return (long) Math.exp(mu + sigma * random.nextGaussian());
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package com.mtvi.plateng.subversion;
+
+import hudson.FilePath;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.tmatesoft.svn.core.SVNCommitInfo;
+import org.tmatesoft.svn.core.SVNErrorCode;
+import org.tmatesoft.svn.core.SVNErrorMessage;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNPropertyValue;
+import org.tmatesoft.svn.core.io.ISVNEditor;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.io.diff.SVNDeltaGenerator;
+
+/**
+ * The directory, property and file changes of a whole publish, gathered across every
+ * ImportItem, so that they can be sent to the repository as one commit.
+ *
+ * All paths are relative to the location the SVNRepository was created for
+ * and use "/" as separator.
+ *
+ * Replaced files and existing directories carry the revision they were last
+ * changed in when the plan was made, so that the commit fails as out of date
+ * when another commit changed them since.
+ */
+public class CommitPlan {
+
+    private enum Kind {
+        OPEN_DIR, ADD_DIR, ADD_FILE, COPY_FILE, MODIFY_FILE
+    }
+
+    /**
+     * A single directory or file in the plan.
+     */
+    private static class Node {
+        private Kind kind;
+        private File source;
+        private FilePath remoteSource;
+        private String baseChecksum;
+        private long baseRevision = -1;
+        private String copyFromPath;
+        private long copyFromRevision = -1;
+        private String checksum;
+        private final Map<String, Node> children = new TreeMap<String, Node>();
+        private final Map<String, String> properties = new TreeMap<String, String>();
+
+        Node(final Kind kind, final File source) {
+            this.kind = kind;
+            this.source = source;
+        }
+    }
+
+    private final Node root = new Node(Kind.OPEN_DIR, null);
+
+    private int changes;
+
+    private long bytesSent;
+
+    private final Map<String, String> checksums = new TreeMap<String, String>();
+
+    /**
+     * Record a directory that has to be created in the repository.
+     *
+     * @param path
+     *            The path of the new directory.
+     */
+    public void addDir(final String path) {
+        Node dir = getDir(path);
+        if (dir != root && dir.kind == Kind.OPEN_DIR) {
+            dir.kind = Kind.ADD_DIR;
+            changes++;
+        }
+    }
+
+    /**
+     * Record the revision an existing directory was last changed in, so that
+     * setting its properties fails as out of date if it changed since.
+     *
+     * @param path
+     *            The path of the directory.
+     * @param revision
+     *            The revision the directory was last changed in, -1 if not
+     *            known.
+     */
+    public void openDir(final String path, final long revision) {
+        Node dir = getDir(path);
+        if (dir != root && dir.kind == Kind.OPEN_DIR) {
+            dir.baseRevision = revision;
+        }
+    }
+
+    /**
+     * Record a property to set on a directory.
+     *
+     * @param path
+     *            The path of the directory, which exists in the repository
+     *            or has been recorded with addDir.
+     * @param name
+     *            The name of the property.
+     * @param value
+     *            The value of the property.
+     */
+    public void setDirProperty(final String path, final String name,
+        final String value) {
+        Node dir = getDir(path);
+        if (null == dir.properties.put(name, value)) {
+            changes++;
+        }
+    }
+
+    /**
+     * Record a file that does not exist in the repository yet.
+     *
+     * @param path
+     *            The path of the file in the repository.
+     * @param source
+     *            The local file providing the contents.
+     */
+    public void addFile(final String path, final File source) {
+        putFile(path, Kind.ADD_FILE, source);
+    }
+
+    /**
+     * Record a file that does not exist in the repository yet.
+     *
+     * @param path
+     *            The path of the file in the repository.
+     * @param source
+     *            The file in a build agent's workspace providing the
+     *            contents.
+     */
+    public void addFile(final String path, final FilePath source) {
+        putFile(path, Kind.ADD_FILE, null).remoteSource = source;
+    }
+
+    /**
+     * Record a file that does not exist in the repository yet, and whose
+     * contents are those of a file already in the repository. The file is
+     * added as a copy, so its contents are not sent.
+     *
+     * @param path
+     *            The path of the file in the repository.
+     * @param copyFromPath
+     *            The path of the file with the same contents, from the
+     *            repository root.
+     * @param copyFromRevision
+     *            The revision in which that file had the contents.
+     * @param checksum
+     *            The MD5 checksum of the contents.
+     */
+    public void copyFile(final String path, final String copyFromPath,
+        final long copyFromRevision, final String checksum) {
+        Node file = putFile(path, Kind.COPY_FILE, null);
+        file.copyFromPath = copyFromPath;
+        file.copyFromRevision = copyFromRevision;
+        file.checksum = checksum;
+    }
+
+    /**
+     * Record a file whose contents in the repository are to be replaced.
+     *
+     * @param path
+     *            The path of the file in the repository.
+     * @param source
+     *            The local file providing the new contents.
+     */
+    public void modifyFile(final String path, final File source) {
+        modifyFile(path, source, null, -1);
+    }
+
+    /**
+     * Record a file whose contents in the repository are to be replaced.
+     *
+     * @param path
+     *            The path of the file in the repository.
+     * @param source
+     *            The local file providing the new contents.
+     * @param baseChecksum
+     *            The MD5 checksum of the contents being replaced, used by the
+     *            server to verify it is replacing what was compared. May be
+     *            null.
+     * @param baseRevision
+     *            The revision the file was last changed in when it was
+     *            compared, -1 if not known.
+     */
+    public void modifyFile(final String path, final File source,
+        final String baseChecksum, final long baseRevision) {
+        Node file = putFile(path, Kind.MODIFY_FILE, source);
+        file.baseChecksum = baseChecksum;
+        file.baseRevision = baseRevision;
+    }
+
+    /**
+     * Record a file whose contents in the repository are to be replaced.
+     *
+     * @param path
+     *            The path of the file in the repository.
+     * @param source
+     *            The file in a build agent's workspace providing the new
+     *            contents.
+     * @param baseChecksum
+     *            The MD5 checksum of the contents being replaced. May be
+     *            null.
+     * @param baseRevision
+     *            The revision the file was last changed in when it was
+     *            compared, -1 if not known.
+     */
+    public void modifyFile(final String path, final FilePath source,
+        final String baseChecksum, final long baseRevision) {
+        Node file = putFile(path, Kind.MODIFY_FILE, null);
+        file.remoteSource = source;
+        file.baseChecksum = baseChecksum;
+        file.baseRevision = baseRevision;
+    }
+
+    /**
+     * Make the commit fail unless the contents sent for a file have the given
+     * checksum, for files that may change while they are published.
+     *
+     * @param path
+     *            The path of a file recorded with addFile or modifyFile.
+     * @param checksum
+     *            The MD5 checksum the contents must have.
+     */
+    public void expectChecksum(final String path, final String checksum) {
+        int slash = path.lastIndexOf('/');
+        Node dir = slash < 0 ? root : getDir(path.substring(0, slash));
+        Node file = dir.children.get(path.substring(slash + 1));
+        if (null != file && file.kind != Kind.COPY_FILE) {
+            file.checksum = checksum;
+        }
+    }
+
+    /**
+     * @return true if nothing has been recorded.
+     */
+    public boolean isEmpty() {
+        return changes == 0;
+    }
+
+    /**
+     * @return the number of directories and files recorded.
+     */
+    public int size() {
+        return changes;
+    }
+
+    /**
+     * @return the number of bytes of file contents sent by commit().
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return the MD5 checksums of the files added or modified by commit(),
+     *         by path.
+     */
+    public Map<String, String> getChecksums() {
+        return checksums;
+    }
+
+    /**
+     * Send every recorded change to the repository in a single commit.
+     *
+     * @param repository
+     *            The repository to commit to.
+     * @param logMessage
+     *            The commit log message.
+     * @return The result of the commit.
+     * @throws SVNException
+     */
+    public SVNCommitInfo commit(final SVNRepository repository,
+        final String logMessage) throws SVNException {
+
+        ISVNEditor editor = repository.getCommitEditor(logMessage, null);
+        try {
+            editor.openRoot(-1);
+            sendProperties(editor, root);
+            driveChildren(editor, root, "", new SVNDeltaGenerator());
+            editor.closeDir();
+            return editor.closeEdit();
+        } catch (SVNException svne) {
+            editor.abortEdit();
+            throw svne;
+        }
+    }
+
+    private void driveChildren(final ISVNEditor editor, final Node dir,
+        final String dirPath, final SVNDeltaGenerator generator)
+        throws SVNException {
+
+        for (Map.Entry<String, Node> entry : dir.children.entrySet()) {
+            String path = dirPath.length() == 0 ? entry.getKey() : dirPath
+                + "/" + entry.getKey();
+            Node node = entry.getValue();
+            switch (node.kind) {
+            case ADD_DIR:
+                editor.addDir(path, null, -1);
+                sendProperties(editor, node);
+                driveChildren(editor, node, path, generator);
+                editor.closeDir();
+                break;
+            case OPEN_DIR:
+                editor.openDir(path, node.baseRevision);
+                sendProperties(editor, node);
+                driveChildren(editor, node, path, generator);
+                editor.closeDir();
+                break;
+            case ADD_FILE:
+                editor.addFile(path, null, -1);
+                sendContents(editor, path, node, generator);
+                break;
+            case COPY_FILE:
+                editor.addFile(path, node.copyFromPath, node.copyFromRevision);
+                // the repository checks the copy has the contents expected
+                editor.closeFile(path, node.checksum);
+                checksums.put(path, node.checksum);
+                break;
+            case MODIFY_FILE:
+                editor.openFile(path, node.baseRevision);
+                sendContents(editor, path, node, generator);
+                break;
+            }
+        }
+    }
+
+    private static void sendProperties(final ISVNEditor editor,
+        final Node dir) throws SVNException {
+        for (Map.Entry<String, String> property : dir.properties.entrySet()) {
+            editor.changeDirProperty(property.getKey(), SVNPropertyValue
+                .create(property.getValue()));
+        }
+    }
+
+    private void sendContents(final ISVNEditor editor,
+        final String path, final Node file, final SVNDeltaGenerator generator)
+        throws SVNException {
+
+        InputStream is = null;
+        try {
+            // a file on an agent is streamed over the channel as it is sent
+            is = new CountingInputStream(new BufferedInputStream(
+                null != file.remoteSource ? file.remoteSource.read()
+                    : new FileInputStream(file.source)));
+            editor.applyTextDelta(path, file.baseChecksum);
+            String checksum = generator.sendDelta(path, is, editor, true);
+            if (null != file.checksum
+                && !file.checksum.equalsIgnoreCase(checksum)) {
+                throw new SVNException(SVNErrorMessage.create(
+                    SVNErrorCode.CHECKSUM_MISMATCH, path
+                        + " changed since it was expected to have checksum "
+                        + file.checksum));
+            }
+            editor.closeFile(path, checksum);
+            checksums.put(path, checksum);
+        } catch (IOException ioe) {
+            throw new SVNException(SVNErrorMessage.create(
+                SVNErrorCode.IO_ERROR, ioe.getMessage()), ioe);
+        } finally {
+            try {
+                if (is != null) {
+                    is.close();
+                }
+            } catch (IOException ioe2) {
+            }
+        }
+    }
+
+    /**
+     * Adds the bytes read through it to the bytes sent.
+     */
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                bytesSent++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                bytesSent += read;
+            }
+            return read;
+        }
+    }
+
+    private Node putFile(final String path, final Kind kind, final File source) {
+        int slash = path.lastIndexOf('/');
+        Node dir = slash < 0 ? root : getDir(path.substring(0, slash));
+        String name = path.substring(slash + 1);
+        if (!dir.children.containsKey(name)) {
+            changes++;
+        }
+        Node file = new Node(kind, source);
+        dir.children.put(name, file);
+        return file;
+    }
+
+    private Node getDir(final String path) {
+        Node node = root;
+        for (String segment : path.split("/")) {
+            if (segment.length() == 0) {
+                continue;
+            }
+            Node child = node.children.get(segment);
+            if (child == null) {
+                child = new Node(Kind.OPEN_DIR, null);
+                node.children.put(segment, child);
+            }
+            node = child;
+        }
+        return node;
+    }
+}
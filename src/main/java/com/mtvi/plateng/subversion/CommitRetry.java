@@ -0,0 +1,87 @@
+package com.mtvi.plateng.subversion;
+
+import java.util.Random;
+
+import org.tmatesoft.svn.core.SVNErrorCode;
+import org.tmatesoft.svn.core.SVNErrorMessage;
+import org.tmatesoft.svn.core.SVNException;
+
+/**
+ * Decides whether a failed publish is worth trying again, and how long to
+ * wait first.
+ *
+ * Only failures caused by someone else committing to the destination at the
+ * same time are retried: the working copy or the transaction was out of date,
+ * or a file or directory being added has appeared meanwhile. They are told
+ * by their error codes alone; a missing path, a checksum mismatch or any
+ * other failure fails the publish at once. The wait doubles with every
+ * attempt up to a limit, and a random part of it is left out so that
+ * publishes that collided do not collide again.
+ */
+public class CommitRetry {
+
+    /**
+     * The wait before the first retry, in milliseconds.
+     */
+    static final long BASE_DELAY = 1000L;
+
+    /**
+     * The longest wait before a retry, in milliseconds.
+     */
+    static final long MAX_DELAY = 30 * 1000L;
+
+    private static final SVNErrorCode[] CONFLICTS = {
+        SVNErrorCode.WC_NOT_UP_TO_DATE, SVNErrorCode.FS_TXN_OUT_OF_DATE,
+        SVNErrorCode.FS_CONFLICT, SVNErrorCode.FS_ALREADY_EXISTS };
+
+    private final int retries;
+
+    private final Random random = new Random();
+
+    /**
+     * @param retries
+     *            The number of times a publish is tried again, 0 never to
+     *            retry.
+     */
+    public CommitRetry(final int retries) {
+        this.retries = Math.max(retries, 0);
+    }
+
+    /**
+     * @param attempt
+     *            The number of the attempt that failed, from 1.
+     * @return true if another attempt may follow it.
+     */
+    public boolean canRetry(final int attempt) {
+        return attempt <= retries;
+    }
+
+    /**
+     * @param attempt
+     *            The number of the attempt that failed, from 1.
+     * @return how long to wait before the next attempt, in milliseconds.
+     */
+    public long delay(final int attempt) {
+        long delay = Math.min(MAX_DELAY, BASE_DELAY << Math.min(attempt - 1,
+            16));
+        // between half and all of the full wait
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * @param svne
+     *            The failure.
+     * @return true if the failure was caused by a concurrent commit.
+     */
+    public static boolean isConflict(final SVNException svne) {
+        for (SVNErrorMessage err = svne.getErrorMessage(); null != err; err = err
+            .getChildErrorMessage()) {
+            for (SVNErrorCode code : CONFLICTS) {
+                if (code == err.getErrorCode()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
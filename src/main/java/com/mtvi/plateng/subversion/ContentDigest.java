@@ -0,0 +1,116 @@
+package com.mtvi.plateng.subversion;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes hex encoded digests of file contents in a single streaming pass,
+ * in the same form Subversion uses for its checksums.
+ */
+public final class ContentDigest {
+
+    public static final String MD5 = "MD5";
+
+    public static final String SHA1 = "SHA-1";
+
+    private static final int BUFFSIZE = 64 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFSIZE];
+        }
+    };
+
+    private ContentDigest() {
+
+    }
+
+    /**
+     * @param file
+     *            The file to digest.
+     * @param algorithm
+     *            The digest algorithm, MD5 or SHA1.
+     * @return the hex encoded digest of the file's contents.
+     * @throws IOException
+     */
+    public static String digest(final File file, final String algorithm)
+        throws IOException {
+        MessageDigest md = newDigest(algorithm);
+        byte[] buffer = BUFFER.get();
+        FileInputStream is = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = is.read(buffer)) >= 0) {
+                md.update(buffer, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * Work out which algorithm produced a Subversion checksum.
+     *
+     * @param checksum
+     *            The checksum, optionally prefixed with its kind as in
+     *            "$sha1$...".
+     * @return MD5, SHA1 or null if the checksum is not recognised.
+     */
+    public static String algorithmOf(final String checksum) {
+        if (null == checksum) {
+            return null;
+        }
+        String value = strip(checksum);
+        if (value.length() == 32) {
+            return MD5;
+        }
+        if (value.length() == 40) {
+            return SHA1;
+        }
+        return null;
+    }
+
+    /**
+     * @param checksum
+     *            A checksum, optionally prefixed with its kind.
+     * @return the hex part of the checksum.
+     */
+    public static String strip(final String checksum) {
+        int start = checksum.lastIndexOf('$');
+        return start < 0 ? checksum : checksum.substring(start + 1);
+    }
+
+    /**
+     * @param algorithm
+     *            The digest algorithm.
+     * @return a new MessageDigest for the algorithm.
+     */
+    public static MessageDigest newDigest(final String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalArgumentException(nsae.getMessage());
+        }
+    }
+
+    /**
+     * @param bytes
+     *            The bytes to encode.
+     * @return the lower case hex encoding of the bytes.
+     */
+    public static String toHex(final byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
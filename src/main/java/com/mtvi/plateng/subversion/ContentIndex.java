@@ -0,0 +1,358 @@
+package com.mtvi.plateng.subversion;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.tmatesoft.svn.core.SVNDirEntry;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNNodeKind;
+import org.tmatesoft.svn.core.SVNProperties;
+import org.tmatesoft.svn.core.SVNProperty;
+import org.tmatesoft.svn.core.io.SVNRepository;
+
+/**
+ * Remembers where contents can be found in a repository: for an MD5 checksum,
+ * a path and revision at which a file had those contents. A new file whose
+ * contents are already in the repository can then be added as a copy of that
+ * file, without sending its contents again and with its history.
+ *
+ * The index learns from every file the publisher commits. It can also be
+ * seeded by listing the directory next to a new destination, typically the
+ * folders of earlier versions. Seeding fetches the checksum of every file it
+ * finds, so it is only done when the system property
+ * com.mtvi.plateng.subversion.ContentIndex.seed is true, and once per
+ * directory for the life of the index.
+ *
+ * Entries are kept per repository UUID in least recently used order, and
+ * written back to the index's file by save(). An entry is only a hint: the
+ * checksum of its file is checked with verify() before anything is copied
+ * from it, and the entry is forgotten if it does not match.
+ */
+public class ContentIndex {
+    private static final Logger LOGGER = Logger.getLogger(ContentIndex.class
+        .getName());
+
+    /**
+     * The number of checksums remembered.
+     */
+    static final int MAX_ENTRIES = 100000;
+
+    /**
+     * The number of files seeding looks at in one directory.
+     */
+    static final int MAX_SEED = 10000;
+
+    /**
+     * Whether directories next to new destinations are seeded.
+     */
+    static final boolean SEED = Boolean.getBoolean(ContentIndex.class
+        .getName() + ".seed");
+
+    /**
+     * A file with the contents looked for.
+     */
+    public static class Source {
+        private final String path;
+        private final long revision;
+
+        Source(final String path, final long revision) {
+            this.path = path;
+            this.revision = revision;
+        }
+
+        /**
+         * @return the path of the file from the repository root, starting
+         *         with "/".
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the revision in which the file had the contents.
+         */
+        public long getRevision() {
+            return revision;
+        }
+    }
+
+    private final File store;
+
+    private final Map<String, Source> entries = new LinkedHashMap<String, Source>(
+        16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+            final Map.Entry<String, Source> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final Set<String> seeded = new HashSet<String>();
+
+    private boolean loaded;
+
+    private boolean dirty;
+
+    /**
+     * @param store
+     *            The file the index is kept in, null to keep it in memory
+     *            only.
+     */
+    public ContentIndex(final File store) {
+        this.store = store;
+    }
+
+    /**
+     * @param uuid
+     *            The UUID of the repository.
+     * @param checksum
+     *            The MD5 checksum of the contents.
+     * @return a file with the contents, null if none is known.
+     */
+    public synchronized Source find(final String uuid, final String checksum) {
+        load();
+        return null == checksum ? null : entries.get(key(uuid, checksum));
+    }
+
+    /**
+     * @param uuid
+     *            The UUID of the repository.
+     * @param checksum
+     *            The MD5 checksum of the contents.
+     * @param path
+     *            The path of a file with the contents, from the repository
+     *            root.
+     * @param revision
+     *            A revision in which the file had the contents.
+     */
+    public synchronized void add(final String uuid, final String checksum,
+        final String path, final long revision) {
+        if (null == checksum || revision < 0) {
+            return;
+        }
+        load();
+        entries.put(key(uuid, checksum), new Source(path.startsWith("/")
+            ? path : "/" + path, revision));
+        dirty = true;
+    }
+
+    /**
+     * Forget a checksum whose file turned out not to have it.
+     *
+     * @param uuid
+     *            The UUID of the repository.
+     * @param checksum
+     *            The MD5 checksum of the contents.
+     */
+    public synchronized void remove(final String uuid, final String checksum) {
+        load();
+        if (null != entries.remove(key(uuid, checksum))) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Check that the file of an entry still has the contents it was recorded
+     * for, forgetting the entry if it does not.
+     *
+     * @param repository
+     *            The repository the file is in.
+     * @param source
+     *            The file found for the checksum.
+     * @param checksum
+     *            The MD5 checksum of the contents.
+     * @return true if the file has the contents.
+     */
+    public boolean verify(final SVNRepository repository, final Source source,
+        final String checksum) {
+        SVNProperties props = new SVNProperties();
+        try {
+            repository.getFile(source.getPath(), source.getRevision(), props,
+                null);
+        } catch (SVNException svne) {
+            LOGGER.fine("ContentIndex could not check " + source.getPath()
+                + "@" + source.getRevision() + ": " + svne.getMessage());
+            props = null;
+        }
+        if (null != props
+            && checksum.equalsIgnoreCase(props
+                .getStringValue(SVNProperty.CHECKSUM))) {
+            return true;
+        }
+        try {
+            remove(repository.getRepositoryUUID(true), checksum);
+        } catch (SVNException svne) {
+        }
+        return false;
+    }
+
+    /**
+     * List a directory and everything below it, and add the checksum of
+     * every file found, unless the directory has been seeded before or
+     * seeding is off.
+     *
+     * @param repository
+     *            The repository to list.
+     * @param dir
+     *            The path of the directory, relative to the location the
+     *            repository was created for.
+     * @return the number of files added.
+     * @throws SVNException
+     *             if the location of the directory can not be found.
+     */
+    public int seed(final SVNRepository repository, final String dir)
+        throws SVNException {
+        if (!SEED) {
+            return 0;
+        }
+        String uuid = repository.getRepositoryUUID(true);
+        String root = repository.getRepositoryPath(dir);
+        synchronized (this) {
+            if (!seeded.add(uuid + " " + root)) {
+                return 0;
+            }
+        }
+        int[] count = new int[1];
+        try {
+            seed(repository, uuid, dir, count);
+        } catch (SVNException svne) {
+            LOGGER.warning("ContentIndex could not seed from " + root + ": "
+                + svne.getMessage());
+        }
+        LOGGER.fine("ContentIndex seeded " + count[0] + " files from " + root);
+        return count[0];
+    }
+
+    private void seed(final SVNRepository repository, final String uuid,
+        final String dir, final int[] count) throws SVNException {
+        Collection<SVNDirEntry> dirEntries = new ArrayList<SVNDirEntry>();
+        repository.getDir(dir, -1, null, SVNDirEntry.DIRENT_KIND, dirEntries);
+        for (SVNDirEntry dirEntry : dirEntries) {
+            if (count[0] >= MAX_SEED) {
+                return;
+            }
+            String path = dir.length() == 0 ? dirEntry.getName() : dir + "/"
+                + dirEntry.getName();
+            if (dirEntry.getKind() == SVNNodeKind.DIR) {
+                seed(repository, uuid, path, count);
+            } else if (dirEntry.getKind() == SVNNodeKind.FILE) {
+                SVNProperties props = new SVNProperties();
+                repository.getFile(path, -1, props, null);
+                String revision = props
+                    .getStringValue(SVNProperty.COMMITTED_REVISION);
+                if (null != revision) {
+                    add(uuid, props.getStringValue(SVNProperty.CHECKSUM),
+                        repository.getRepositoryPath(path), Long
+                            .parseLong(revision));
+                    count[0]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the index back to its file if anything was added. Publishes
+     * sharing the index save one at a time.
+     */
+    public synchronized void save() {
+        if (null == store || !dirty) {
+            return;
+        }
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, Source> e : entries.entrySet()) {
+            Source source = e.getValue();
+            lines.add(source.revision + " " + e.getKey() + " " + source.path);
+        }
+        dirty = false;
+
+        // written aside and renamed so a concurrent load never sees half a
+        // file; the aside file is unique so that other processes sharing the
+        // store never write into it
+        File temp = null;
+        PrintWriter out = null;
+        try {
+            temp = File.createTempFile(store.getName(), ".tmp", store
+                .getAbsoluteFile().getParentFile());
+            out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(
+                temp), "UTF-8"));
+            for (String line : lines) {
+                out.println(line);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(store)) {
+                store.delete();
+                if (!temp.renameTo(store)) {
+                    LOGGER.warning("ContentIndex could not replace " + store);
+                }
+            }
+        } catch (IOException ioe) {
+            LOGGER.warning("ContentIndex could not write " + store + ": "
+                + ioe.getMessage());
+        } finally {
+            if (null != out) {
+                out.close();
+            }
+            if (null != temp) {
+                temp.delete();
+            }
+        }
+    }
+
+    private static String key(final String uuid, final String checksum) {
+        return uuid + " " + checksum.toLowerCase();
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (null == store || !store.isFile()) {
+            return;
+        }
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(
+                store), "UTF-8"));
+            String line;
+            while (null != (line = in.readLine())) {
+                // revision uuid checksum path
+                String[] fields = line.split(" ", 4);
+                if (fields.length == 4) {
+                    entries.put(fields[1] + " " + fields[2], new Source(
+                        fields[3], Long.parseLong(fields[0])));
+                }
+            }
+        } catch (IOException ioe) {
+            LOGGER.warning("ContentIndex could not read " + store + ": "
+                + ioe.getMessage());
+        } catch (NumberFormatException nfe) {
+            LOGGER.warning("ContentIndex ignoring corrupt " + store);
+            entries.clear();
+        } finally {
+            try {
+                if (null != in) {
+                    in.close();
+                }
+            } catch (IOException ioe) {
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.mtvi.plateng.subversion;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the digests of local files between publishes, so that a file
+ * whose size and modification time have not changed since it was last
+ * digested costs a stat instead of a full read.
+ *
+ * Entries are kept in least recently used order and the oldest are dropped
+ * once the cache holds more than its limit. A cache created with a file is
+ * loaded from it and written back by save(); without a file it only lasts
+ * for the publish.
+ *
+ * Files modified within the last couple of seconds are digested but not
+ * remembered, because a later change within the same timestamp granularity
+ * could leave both size and modification time unchanged.
+ *
+ * MD5 digests computed elsewhere, such as the fingerprints Jenkins recorded
+ * for the build's artifacts, can be handed to the cache with addKnown(). They
+ * are answered without reading the file as long as the file has not been
+ * modified since a time the file is known to have had the digested contents.
+ * That time is on the clock of the machine holding the file, which reads the
+ * file's modification time.
+ */
+public class DigestCache {
+    private static final Logger LOGGER = Logger.getLogger(DigestCache.class
+        .getName());
+
+    /**
+     * The number of files remembered.
+     */
+    static final int MAX_ENTRIES = 20000;
+
+    /**
+     * How recently modified a file may be and still be remembered.
+     */
+    static final long SETTLE_TIME = 2000L;
+
+    /**
+     * What is remembered about one file.
+     */
+    private static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final String digest;
+
+        Entry(final long size, final long lastModified, final String digest) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * An MD5 digest computed elsewhere, and a time the file had the digested
+     * contents.
+     */
+    public static class Known implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String md5;
+        private final long computed;
+
+        /**
+         * @param md5
+         *            The hex encoded MD5 digest of the file's contents.
+         * @param computed
+         *            A time at or after the digest was computed, when the
+         *            file still had the digested contents unless it has been
+         *            modified since, in milliseconds since the epoch.
+         */
+        public Known(final String md5, final long computed) {
+            this.md5 = md5.toLowerCase();
+            this.computed = computed;
+        }
+
+        /**
+         * @param offset
+         *            How far the clock of the machine holding the file is
+         *            ahead of the clock the time was read from, in
+         *            milliseconds.
+         * @return the same digest, with its time on the other clock.
+         */
+        Known shift(final long offset) {
+            return new Known(md5, computed + offset);
+        }
+    }
+
+    private final File store;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(
+        16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final Map<String, Known> known = new HashMap<String, Known>();
+
+    private boolean dirty;
+
+    private int hits;
+
+    private int misses;
+
+    private long bytesDigested;
+
+    /**
+     * @param store
+     *            The file the cache is kept in, null to keep it in memory
+     *            only.
+     */
+    public DigestCache(final File store) {
+        this.store = store;
+        if (null != store && store.isFile()) {
+            load();
+        }
+    }
+
+    /**
+     * Take the MD5 digest of a file as known, for the rest of the publish,
+     * unless the file is modified after it was computed.
+     *
+     * @param path
+     *            The absolute path of the file.
+     * @param digest
+     *            The digest of the file's contents.
+     */
+    public void addKnown(final String path, final Known digest) {
+        synchronized (entries) {
+            known.put(new File(path).getAbsolutePath(), digest);
+        }
+    }
+
+    /**
+     * @param file
+     *            The file to digest.
+     * @param algorithm
+     *            The digest algorithm, see ContentDigest.
+     * @return the hex encoded digest of the file's contents.
+     * @throws IOException
+     */
+    public String digest(final File file, final String algorithm)
+        throws IOException {
+        String key = algorithm + " " + file.getAbsolutePath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        synchronized (entries) {
+            Known digest = ContentDigest.MD5.equals(algorithm) ? known
+                .get(file.getAbsolutePath()) : null;
+            if (null != digest && lastModified > 0
+                && lastModified <= digest.computed) {
+                hits++;
+                return digest.md5;
+            }
+            Entry entry = entries.get(key);
+            if (null != entry && entry.size == size
+                && entry.lastModified == lastModified) {
+                hits++;
+                return entry.digest;
+            }
+            misses++;
+        }
+
+        String digest = ContentDigest.digest(file, algorithm);
+        synchronized (entries) {
+            bytesDigested += size;
+        }
+        if (System.currentTimeMillis() - lastModified > SETTLE_TIME
+            && file.lastModified() == lastModified) {
+            synchronized (entries) {
+                entries.put(key, new Entry(size, lastModified, digest));
+                dirty = true;
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * @return the number of digests answered without reading the file.
+     */
+    public int getHits() {
+        synchronized (entries) {
+            return hits;
+        }
+    }
+
+    /**
+     * @return the number of digests that had to read the file.
+     */
+    public int getMisses() {
+        synchronized (entries) {
+            return misses;
+        }
+    }
+
+    /**
+     * @return the number of bytes read to compute digests.
+     */
+    public long getBytesDigested() {
+        synchronized (entries) {
+            return bytesDigested;
+        }
+    }
+
+    /**
+     * Write the cache back to its file if anything was added.
+     */
+    public void save() {
+        List<String> lines = new ArrayList<String>();
+        synchronized (entries) {
+            if (null == store || !dirty) {
+                return;
+            }
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                lines.add(entry.size + " " + entry.lastModified + " "
+                    + entry.digest + " " + e.getKey());
+            }
+            dirty = false;
+        }
+
+        // written aside and renamed so a concurrent load never sees half a
+        // file
+        File temp = new File(store.getPath() + ".tmp");
+        PrintWriter out = null;
+        try {
+            out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(
+                temp), "UTF-8"));
+            for (String line : lines) {
+                out.println(line);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(store)) {
+                store.delete();
+                if (!temp.renameTo(store)) {
+                    LOGGER.warning("DigestCache could not replace " + store);
+                }
+            }
+        } catch (IOException ioe) {
+            LOGGER.warning("DigestCache could not write " + store + ": "
+                + ioe.getMessage());
+        } finally {
+            if (null != out) {
+                out.close();
+            }
+        }
+    }
+
+    private void load() {
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(
+                store), "UTF-8"));
+            String line;
+            while (null != (line = in.readLine())) {
+                // size lastModified digest algorithm path
+                String[] fields = line.split(" ", 4);
+                if (fields.length == 4) {
+                    entries.put(fields[3], new Entry(Long.parseLong(fields[0]),
+                        Long.parseLong(fields[1]), fields[2]));
+                }
+            }
+        } catch (IOException ioe) {
+            LOGGER.warning("DigestCache could not read " + store + ": "
+                + ioe.getMessage());
+        } catch (NumberFormatException nfe) {
+            LOGGER.warning("DigestCache ignoring corrupt " + store);
+            entries.clear();
+        } finally {
+            try {
+                if (null != in) {
+                    in.close();
+                }
+            } catch (IOException ioe) {
+            }
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.mtvi.plateng.subversion;
+
+import java.io.File;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Compares the contents of two files. Safe to use from any number of threads
+ * at once: every thread compares through its own pair of direct buffers, and
+ * large files are compared region by region through memory mapped channels.
+ * Comparison stops at the first region that differs.
+ *
+ * A file can also be brought up to date with another in a single pass: the
+ * files are compared until they diverge and the rest of the source is
+ * transferred over the target from there, so a changed source is read once
+ * rather than once to compare and once more to copy.
+ */
+public final class FileComparator {
+
+    /**
+     * The size of the buffers used for files that are not mapped.
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Files at least this large are compared through memory mapped regions.
+     */
+    static final long MAP_THRESHOLD = 8L * 1024 * 1024;
+
+    /**
+     * The size of each mapped region.
+     */
+    static final long MAP_REGION = 64L * 1024 * 1024;
+
+    /**
+     * A mapped file can not be replaced on Windows until the mapping has been
+     * garbage collected, and changed files are copied over the working copy
+     * right after they are compared.
+     */
+    private static final boolean MAP = File.separatorChar == '/';
+
+    private static final ThreadLocal<ByteBuffer[]> BUFFERS = new ThreadLocal<ByteBuffer[]>() {
+        @Override
+        protected ByteBuffer[] initialValue() {
+            return new ByteBuffer[] { ByteBuffer.allocateDirect(BUFFER_SIZE),
+                ByteBuffer.allocateDirect(BUFFER_SIZE) };
+        }
+    };
+
+    /**
+     * What update did to the target.
+     */
+    public enum Update {
+        /**
+         * The target already had the contents of the source.
+         */
+        EQUAL,
+        /**
+         * The target has been given the contents of the source.
+         */
+        UPDATED,
+        /**
+         * The target could not be updated.
+         */
+        FAILED
+    }
+
+    private FileComparator() {
+
+    }
+
+    /**
+     * @param file1
+     *            The first file.
+     * @param file2
+     *            The second file.
+     * @return true if both files exist and have the same contents.
+     */
+    public static boolean contentsEquals(final File file1, final File file2) {
+        if (!file1.isFile() || !file2.isFile()) {
+            return false;
+        }
+        long length = file1.length();
+        if (length != file2.length()) {
+            return false;
+        }
+
+        FileInputStream is1 = null;
+        FileInputStream is2 = null;
+        try {
+            is1 = new FileInputStream(file1);
+            is2 = new FileInputStream(file2);
+            FileChannel ch1 = is1.getChannel();
+            FileChannel ch2 = is2.getChannel();
+            if (MAP && length >= MAP_THRESHOLD) {
+                return mappedEquals(ch1, ch2, length);
+            }
+            return bufferedEquals(ch1, ch2);
+        } catch (IOException ioe) {
+            return false;
+        } finally {
+            close(is1);
+            close(is2);
+        }
+    }
+
+    /**
+     * Give target the contents of source, reading source once. Only the part
+     * of target from the first byte that differs onwards is written. Target
+     * is written in place, so it is left partly updated if writing fails.
+     *
+     * @param source
+     *            The file to read.
+     * @param target
+     *            The file to update, created if it does not exist.
+     * @return whether target was already equal, has been updated or could not
+     *         be updated.
+     */
+    public static Update update(final File source, final File target) {
+        if (!source.isFile()) {
+            return Update.FAILED;
+        }
+        if (!target.isFile()) {
+            return copy(source, target) ? Update.UPDATED : Update.FAILED;
+        }
+
+        FileInputStream in = null;
+        RandomAccessFile out = null;
+        try {
+            in = new FileInputStream(source);
+            out = new RandomAccessFile(target, "rw");
+            FileChannel src = in.getChannel();
+            FileChannel dst = out.getChannel();
+            long length = src.size();
+            long position = divergence(src, dst);
+            if (position == length && dst.size() == length) {
+                return Update.EQUAL;
+            }
+            transfer(src, position, length, dst);
+            dst.truncate(length);
+            return Update.UPDATED;
+        } catch (IOException ioe) {
+            return Update.FAILED;
+        } finally {
+            close(in);
+            close(out);
+        }
+    }
+
+    /**
+     * Copy source over target, letting the channels move the bytes without
+     * passing them through the heap where the platform allows it.
+     *
+     * @param source
+     *            The file to read.
+     * @param target
+     *            The file to replace.
+     * @return true if target has been given the contents of source.
+     */
+    public static boolean copy(final File source, final File target) {
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(source);
+            out = new FileOutputStream(target);
+            FileChannel src = in.getChannel();
+            transfer(src, 0, src.size(), out.getChannel());
+            return true;
+        } catch (IOException ioe) {
+            return false;
+        } finally {
+            close(in);
+            close(out);
+        }
+    }
+
+    /**
+     * @return the offset of the first byte that differs between the two
+     *         channels, or the length of the shorter one if it is a prefix of
+     *         the other.
+     */
+    private static long divergence(final FileChannel ch1,
+        final FileChannel ch2) throws IOException {
+        ByteBuffer[] buffers = BUFFERS.get();
+        ByteBuffer buff1 = buffers[0];
+        ByteBuffer buff2 = buffers[1];
+        long position = 0;
+        while (true) {
+            buff1.clear();
+            buff2.clear();
+            int read1 = fill(ch1, buff1);
+            int read2 = fill(ch2, buff2);
+            buff1.flip();
+            buff2.flip();
+            if (read1 != read2 || read1 == 0 || !buff1.equals(buff2)) {
+                int common = Math.min(read1, read2);
+                int i = 0;
+                while (i < common && buff1.get(i) == buff2.get(i)) {
+                    i++;
+                }
+                return position + i;
+            }
+            position += read1;
+        }
+    }
+
+    /**
+     * Write the bytes of src from position up to length to dst, at the same
+     * position.
+     */
+    private static void transfer(final FileChannel src, final long position,
+        final long length, final FileChannel dst) throws IOException {
+        dst.position(position);
+        for (long done = position; done < length;) {
+            long count = src.transferTo(done, length - done, dst);
+            if (count <= 0) {
+                throw new IOException("Unable to transfer past byte " + done);
+            }
+            done += count;
+        }
+    }
+
+    private static boolean mappedEquals(final FileChannel ch1,
+        final FileChannel ch2, final long length) throws IOException {
+        for (long position = 0; position < length; position += MAP_REGION) {
+            long size = Math.min(MAP_REGION, length - position);
+            MappedByteBuffer region1 = ch1.map(FileChannel.MapMode.READ_ONLY,
+                position, size);
+            MappedByteBuffer region2 = ch2.map(FileChannel.MapMode.READ_ONLY,
+                position, size);
+            if (!region1.equals(region2)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean bufferedEquals(final FileChannel ch1,
+        final FileChannel ch2) throws IOException {
+        ByteBuffer[] buffers = BUFFERS.get();
+        ByteBuffer buff1 = buffers[0];
+        ByteBuffer buff2 = buffers[1];
+        while (true) {
+            buff1.clear();
+            buff2.clear();
+            int read1 = fill(ch1, buff1);
+            int read2 = fill(ch2, buff2);
+            if (read1 != read2) {
+                return false;
+            }
+            if (read1 == 0) {
+                return true;
+            }
+            buff1.flip();
+            buff2.flip();
+            if (!buff1.equals(buff2)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Read from the channel until the buffer is full or the end of the file
+     * has been reached.
+     *
+     * @return the number of bytes read.
+     */
+    private static int fill(final FileChannel channel, final ByteBuffer buffer)
+        throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static void close(final Closeable c) {
+        try {
+            if (c != null) {
+                c.close();
+            }
+        } catch (IOException ioe) {
+        }
+    }
+}
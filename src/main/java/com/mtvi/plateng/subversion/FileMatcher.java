@@ -0,0 +1,319 @@
+package com.mtvi.plateng.subversion;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the files matched by an ImportItem pattern.
+ *
+ * A pattern is a regular expression unless it starts with "glob:". A regular
+ * expression without a "/" is matched against the names of the entries
+ * directly inside the target directory, as it always has been. Globs, and
+ * regular expressions containing a "/", are matched against the paths of
+ * files anywhere below the target directory, relative to it and separated by
+ * "/". In globs "*" and "?" match within a path segment, "**" matches across
+ * segments and "{a,b}" matches either alternative.
+ *
+ * Matchers are compiled once per pattern and cached. The walk is lazy: files
+ * are returned as they are found, directories that can not contain a match
+ * are not entered, and working copy administrative directories are skipped.
+ * A cheap literal suffix test runs before the regular expression.
+ */
+public final class FileMatcher {
+
+    private static final String GLOB = "glob:";
+
+    private static final String META = "\\^$.|?*+()[]{}";
+
+    private static final int CACHE_SIZE = 256;
+
+    private static final Map<String, FileMatcher> CACHE = new LinkedHashMap<String, FileMatcher>(
+        16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+            final Map.Entry<String, FileMatcher> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final Pattern pattern;
+
+    /**
+     * Whether relative paths below the target are matched, rather than names
+     * directly inside it.
+     */
+    private final boolean paths;
+
+    /**
+     * The literal directory every match lies in, relative to the target.
+     */
+    private final String base;
+
+    /**
+     * The deepest directory level a match can lie at, -1 if unbounded.
+     */
+    private final int maxDepth;
+
+    /**
+     * A literal every match ends with.
+     */
+    private final String suffix;
+
+    private FileMatcher(final Pattern pattern, final boolean paths,
+        final String base, final int maxDepth, final String suffix) {
+        this.pattern = pattern;
+        this.paths = paths;
+        this.base = base;
+        this.maxDepth = maxDepth;
+        this.suffix = suffix;
+    }
+
+    /**
+     * @param patternString
+     *            The ImportItem pattern, with variables already replaced.
+     * @return the matcher for the pattern.
+     */
+    public static FileMatcher compile(final String patternString) {
+        synchronized (CACHE) {
+            FileMatcher matcher = CACHE.get(patternString);
+            if (null == matcher) {
+                matcher = patternString.startsWith(GLOB) ? compileGlob(patternString
+                    .substring(GLOB.length()))
+                    : compileRegex(patternString);
+                CACHE.put(patternString, matcher);
+            }
+            return matcher;
+        }
+    }
+
+    /**
+     * @param name
+     *            A file name, or a path relative to the target when matching
+     *            paths.
+     * @return true if the pattern matches.
+     */
+    public boolean matches(final String name) {
+        return name.endsWith(suffix) && pattern.matcher(name).matches();
+    }
+
+    /**
+     * @param parent
+     *            The target directory to search.
+     * @param exclude
+     *            A directory never to enter, may be null.
+     * @return the matching files, found as the iteration proceeds.
+     */
+    public Iterable<File> match(final File parent, final File exclude) {
+        return new Iterable<File>() {
+            public Iterator<File> iterator() {
+                return new Walk(parent, exclude);
+            }
+        };
+    }
+
+    private static FileMatcher compileRegex(final String regex) {
+        boolean paths = regex.indexOf('/') >= 0;
+        String base = "";
+        if (paths && regex.indexOf('|') < 0) {
+            int i = 0;
+            while (i < regex.length()
+                && (Character.isLetterOrDigit(regex.charAt(i)) || "_-/"
+                    .indexOf(regex.charAt(i)) >= 0)) {
+                i++;
+            }
+            // a quantifier applies to the character before it
+            if (i < regex.length() && "?*+{".indexOf(regex.charAt(i)) >= 0) {
+                i--;
+            }
+            base = directoryOf(regex.substring(0, Math.max(i, 0)));
+        }
+        return new FileMatcher(Pattern.compile(regex), paths, base, -1,
+            regexSuffix(regex));
+    }
+
+    private static FileMatcher compileGlob(final String glob) {
+        StringBuilder regex = new StringBuilder();
+        int literal = -1;
+        boolean alternatives = false;
+        for (int i = 0; i < glob.length(); i++) {
+            int start = i;
+            char c = glob.charAt(i);
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                if (i + 2 < glob.length() && glob.charAt(i + 2) == '/') {
+                    regex.append("(?:.*/)?");
+                    i += 2;
+                } else {
+                    regex.append(".*");
+                    i++;
+                }
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else if (c == '{') {
+                regex.append("(?:");
+                alternatives = true;
+            } else if (c == '}' && alternatives) {
+                regex.append(')');
+                alternatives = false;
+            } else if (c == ',' && alternatives) {
+                regex.append('|');
+            } else {
+                if (META.indexOf(c) >= 0) {
+                    regex.append('\\');
+                }
+                regex.append(c);
+                continue;
+            }
+            if (literal < 0) {
+                literal = start;
+            }
+        }
+
+        String prefix = literal < 0 ? glob : glob.substring(0, literal);
+        int last = Math.max(glob.lastIndexOf('*'), Math.max(glob
+            .lastIndexOf('?'), glob.lastIndexOf('}')));
+        String suffix = glob.substring(last + 1);
+        int maxDepth = glob.indexOf("**") >= 0 ? -1 : count(glob, '/');
+        return new FileMatcher(Pattern.compile(regex.toString()), true,
+            directoryOf(prefix), maxDepth, suffix);
+    }
+
+    /**
+     * Find a literal every string matched by the regular expression ends
+     * with, or "" when there is no such literal or it can not be worked out
+     * safely.
+     */
+    private static String regexSuffix(final String regex) {
+        if (regex.indexOf('|') >= 0 || regex.indexOf("(?") >= 0) {
+            return "";
+        }
+        int end = regex.length();
+        if (end > 0 && regex.charAt(end - 1) == '$'
+            && (end < 2 || regex.charAt(end - 2) != '\\')) {
+            end--;
+        }
+        StringBuilder suffix = new StringBuilder();
+        int i = end - 1;
+        while (i >= 0) {
+            char c = regex.charAt(i);
+            boolean escaped = i > 0 && regex.charAt(i - 1) == '\\';
+            if (escaped) {
+                if (Character.isLetterOrDigit(c)
+                    || (i > 1 && regex.charAt(i - 2) == '\\')) {
+                    break;
+                }
+                suffix.insert(0, c);
+                i -= 2;
+            } else if (META.indexOf(c) >= 0) {
+                break;
+            } else {
+                suffix.insert(0, c);
+                i--;
+            }
+        }
+        return suffix.toString();
+    }
+
+    private static String directoryOf(final String prefix) {
+        int slash = prefix.lastIndexOf('/');
+        return slash < 0 ? "" : prefix.substring(0, slash);
+    }
+
+    private static int count(final String s, final char c) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == c) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * A depth first walk below the target directory that stops as soon as it
+     * has found the next match.
+     */
+    private class Walk implements Iterator<File> {
+        private final File exclude;
+
+        /**
+         * The directories still to be listed, with their relative paths.
+         */
+        private final LinkedList<Object[]> pending = new LinkedList<Object[]>();
+
+        private File[] listing;
+        private String listingPath;
+        private int position;
+        private int subdirectories;
+        private File next;
+
+        Walk(final File parent, final File exclude) {
+            this.exclude = exclude;
+            File start = base.length() == 0 ? parent : new File(parent, base
+                .replace("/", File.separator));
+            pending.add(new Object[] { start, base });
+        }
+
+        public boolean hasNext() {
+            while (null == next) {
+                if (null != listing && position < listing.length) {
+                    consider(listing[position++]);
+                } else if (!pending.isEmpty()) {
+                    Object[] dir = pending.removeFirst();
+                    listing = ((File) dir[0]).listFiles();
+                    listingPath = (String) dir[1];
+                    position = 0;
+                    subdirectories = 0;
+                    if (null != listing) {
+                        Arrays.sort(listing);
+                    }
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public File next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            File file = next;
+            next = null;
+            return file;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void consider(final File file) {
+            if (!paths) {
+                if (!file.equals(exclude) && matches(file.getName())) {
+                    next = file;
+                }
+                return;
+            }
+            String path = listingPath.length() == 0 ? file.getName()
+                : listingPath + "/" + file.getName();
+            if (file.isDirectory()) {
+                if (!file.getName().equals(".svn") && !file.equals(exclude)
+                    && (maxDepth < 0 || count(path, '/') < maxDepth)) {
+                    // visited before the remaining directories, in order
+                    pending.add(subdirectories++, new Object[] { file, path });
+                }
+            } else if (matches(path)) {
+                next = file;
+            }
+        }
+    }
+}
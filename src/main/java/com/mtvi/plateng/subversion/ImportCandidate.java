@@ -0,0 +1,205 @@
+package com.mtvi.plateng.subversion;
+
+import hudson.FilePath;
+
+import java.io.File;
+
+/**
+ * A local file matched by an ImportItem, together with where it is to be
+ * placed in the repository and what publishing it requires.
+ */
+public class ImportCandidate {
+
+    /**
+     * What has to be done to publish a candidate.
+     */
+    public enum Status {
+        /**
+         * Not examined yet.
+         */
+        UNKNOWN,
+        /**
+         * The file does not exist in the repository.
+         */
+        NEW,
+        /**
+         * The file exists in the repository with different contents.
+         */
+        CHANGED,
+        /**
+         * The file exists in the repository with the same contents.
+         */
+        UNCHANGED
+    }
+
+    /**
+     * The index of the ImportItem that matched the file.
+     */
+    private final int item;
+    /**
+     * The local file.
+     */
+    private final File file;
+    /**
+     * The resolved path of the ImportItem within the project.
+     */
+    private final String path;
+    /**
+     * The name the file is given in the repository.
+     */
+    private final String name;
+    /**
+     * The file in the working copy that holds the repository's version, null
+     * when publishing without a working copy.
+     */
+    private final File workingCopyFile;
+
+    /**
+     * The file in a workspace held by a build agent, null when the file is
+     * local.
+     */
+    private FilePath remoteFile;
+
+    /**
+     * The size of the file, -1 to read it from the file.
+     */
+    private long length = -1;
+
+    /**
+     * The MD5 digest of the file, if already known.
+     */
+    private String digest;
+
+    /**
+     * The checksum of the repository's version of the file, if known.
+     */
+    private String baseChecksum;
+
+    /**
+     * The revision the repository's version of the file was last changed in,
+     * -1 if not known.
+     */
+    private long baseRevision = -1;
+
+    private Status status = Status.UNKNOWN;
+
+    private boolean staged;
+
+    /**
+     * @param item
+     *            The index of the ImportItem that matched the file.
+     * @param file
+     *            The local file.
+     * @param path
+     *            The resolved path of the ImportItem within the project.
+     * @param name
+     *            The name the file is given in the repository.
+     * @param workingCopyFile
+     *            The file in the working copy that holds the repository's
+     *            version, null when publishing without a working copy.
+     */
+    public ImportCandidate(final int item, final File file, final String path,
+        final String name, final File workingCopyFile) {
+        this.item = item;
+        this.file = file;
+        this.path = path;
+        this.name = name;
+        this.workingCopyFile = workingCopyFile;
+    }
+
+    public int getItem() {
+        return item;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the path of the file relative to the project root.
+     */
+    public String getRepositoryPath() {
+        return path + name;
+    }
+
+    public File getWorkingCopyFile() {
+        return workingCopyFile;
+    }
+
+    public FilePath getRemoteFile() {
+        return remoteFile;
+    }
+
+    /**
+     * @param remoteFile
+     *            the file in a workspace held by a build agent.
+     */
+    public void setRemoteFile(final FilePath remoteFile) {
+        this.remoteFile = remoteFile;
+    }
+
+    /**
+     * @return the size of the file.
+     */
+    public long getLength() {
+        return length >= 0 ? length : file.length();
+    }
+
+    public void setLength(final long length) {
+        this.length = length;
+    }
+
+    /**
+     * @return the MD5 digest of the file, null if not known yet.
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    public void setDigest(final String digest) {
+        this.digest = digest;
+    }
+
+    public String getBaseChecksum() {
+        return baseChecksum;
+    }
+
+    public void setBaseChecksum(final String baseChecksum) {
+        this.baseChecksum = baseChecksum;
+    }
+
+    public long getBaseRevision() {
+        return baseRevision;
+    }
+
+    public void setBaseRevision(final long baseRevision) {
+        this.baseRevision = baseRevision;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(final Status status) {
+        this.status = status;
+    }
+
+    /**
+     * @return true if the file has been copied into the working copy.
+     */
+    public boolean isStaged() {
+        return staged;
+    }
+
+    public void setStaged(final boolean staged) {
+        this.staged = staged;
+    }
+}
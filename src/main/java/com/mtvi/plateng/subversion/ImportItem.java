@@ -1,5 +1,7 @@
 package com.mtvi.plateng.subversion;
 
+import java.io.Serializable;
+
 import org.kohsuke.stapler.DataBoundConstructor;
 
 /**
@@ -10,7 +12,8 @@ import org.kohsuke.stapler.DataBoundConstructor;
  * @author bsmith
  *
  */
-public class ImportItem {
+public class ImportItem implements Serializable {
+	private static final long serialVersionUID = 1L;
 	
 	/**
 	 * The pattern used to find files/folders covered by this item.
@@ -0,0 +1,373 @@
+package com.mtvi.plateng.subversion;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.tmatesoft.svn.core.SVNErrorCode;
+import org.tmatesoft.svn.core.SVNErrorMessage;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNNodeKind;
+import org.tmatesoft.svn.core.SVNProperties;
+import org.tmatesoft.svn.core.SVNProperty;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.wc.SVNRevision;
+import org.tmatesoft.svn.core.wc.SVNWCClient;
+
+/**
+ * Decides what has to be done for each ImportCandidate: whether it exists in
+ * the repository, whether its contents differ from the working copy and,
+ * when asked to, copies changed files into the working copy.
+ *
+ * Contents are compared by digesting the local file and comparing the result
+ * with the checksum the working copy keeps for its pristine version, so the
+ * working copy file itself is not read. Files without a usable checksum are
+ * compared byte for byte; when changed files are to be staged, a working copy
+ * file found to differ is brought up to date in that same pass, so the local
+ * file is read once. Candidates without a working copy file are compared
+ * with the checksum the repository reports for the file. Local digests come
+ * from a DigestCache, so unchanged files are normally not read at all.
+ * Candidates found in a workspace held by a build agent arrive with their
+ * size and digest, and are not read here at all.
+ *
+ * Candidates are examined concurrently on a bounded pool of threads. An
+ * SVNRepository may only be used by one thread at a time, so every pool
+ * thread leases its own session to the same location, with its own client
+ * manager, from the SVNSessionPool.
+ */
+public class ImportPlanner {
+
+    private final SVNSessionPool pool;
+
+    private final SVNSessionPool.Session session;
+
+    private final RemoteIndex index;
+
+    private final DigestCache digests;
+
+    private final int threads;
+
+    private final PublishMetrics metrics;
+
+    private final List<Worker> workers = Collections
+        .synchronizedList(new ArrayList<Worker>());
+
+    private final ThreadLocal<Worker> worker = new ThreadLocal<Worker>();
+
+    private final List<Future<Object>> futures = new ArrayList<Future<Object>>();
+
+    private ExecutorService executor;
+
+    private Worker sequential;
+
+    private boolean failed;
+
+    /**
+     * @param pool
+     *            The pool the pool threads lease their sessions from.
+     * @param session
+     *            The session to the repository the candidates are checked
+     *            against.
+     * @param index
+     *            The index answering whether candidates exist in the
+     *            repository.
+     * @param digests
+     *            The cache local digests are taken from.
+     * @param threads
+     *            The number of candidates to examine at once, 0 to use one
+     *            thread per available processor.
+     * @param metrics
+     *            Where comparing and copying are timed and counted.
+     */
+    public ImportPlanner(final SVNSessionPool pool,
+        final SVNSessionPool.Session session, final RemoteIndex index,
+        final DigestCache digests, final int threads,
+        final PublishMetrics metrics) {
+        this.pool = pool;
+        this.session = session;
+        this.index = index;
+        this.digests = digests;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime()
+            .availableProcessors();
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set the status of every candidate.
+     *
+     * @param candidates
+     *            The candidates to examine.
+     * @param stage
+     *            true to copy changed files into their working copy.
+     * @throws SVNException
+     */
+    public void plan(final List<ImportCandidate> candidates, final boolean stage)
+        throws SVNException {
+        try {
+            for (ImportCandidate candidate : candidates) {
+                submit(candidate, stage);
+            }
+            finish();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Start examining a candidate. With more than one thread this returns
+     * straight away, so callers can go on finding candidates while earlier
+     * ones are examined.
+     *
+     * @param candidate
+     *            The candidate to examine.
+     * @param stage
+     *            true to copy the file into its working copy if it changed.
+     * @throws SVNException
+     */
+    public void submit(final ImportCandidate candidate, final boolean stage)
+        throws SVNException {
+        if (threads == 1) {
+            if (null == sequential) {
+                sequential = new Worker(session);
+            }
+            sequential.examine(candidate, stage);
+            return;
+        }
+        if (null == executor) {
+            executor = Executors.newFixedThreadPool(threads,
+                new PlannerThreadFactory());
+        }
+        futures.add(executor.submit(new Callable<Object>() {
+            public Object call() throws SVNException {
+                getWorker().examine(candidate, stage);
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * Wait until every submitted candidate has been examined.
+     *
+     * @throws SVNException
+     *             the first failure of any candidate.
+     */
+    public void finish() throws SVNException {
+        try {
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+            futures.clear();
+        } catch (ExecutionException ee) {
+            failed = true;
+            if (ee.getCause() instanceof SVNException) {
+                throw (SVNException) ee.getCause();
+            }
+            throw new SVNException(SVNErrorMessage.create(
+                SVNErrorCode.UNKNOWN, ee.getCause().getMessage()),
+                ee.getCause());
+        } catch (InterruptedException ie) {
+            failed = true;
+            throw new SVNException(SVNErrorMessage.create(
+                SVNErrorCode.CANCELLED, "Interrupted while planning"), ie);
+        }
+    }
+
+    /**
+     * Stop the pool threads and give their sessions back.
+     */
+    public void close() {
+        if (null != executor) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (!futures.isEmpty()) {
+            // abandoned part way through
+            failed = true;
+            futures.clear();
+        }
+        synchronized (workers) {
+            for (Worker w : workers) {
+                if (failed) {
+                    pool.discard(w.session);
+                } else {
+                    pool.release(w.session);
+                }
+            }
+            workers.clear();
+        }
+    }
+
+    private Worker getWorker() throws SVNException {
+        Worker w = worker.get();
+        if (null == w) {
+            w = new Worker(pool.lease(session));
+            workers.add(w);
+            worker.set(w);
+        }
+        return w;
+    }
+
+    /**
+     * Whether the contents of a local file are the same as those of its
+     * working copy file.
+     *
+     * @param wcClient
+     *            The client used to read the working copy's checksum.
+     * @param candidate
+     *            The candidate holding the local and working copy files.
+     * @param stage
+     *            true to bring a changed working copy file up to date while
+     *            comparing, where the files have to be compared byte for
+     *            byte. The candidate is marked staged when that is done.
+     * @return true if the contents are the same.
+     */
+    boolean contentsEqual(final SVNWCClient wcClient,
+        final ImportCandidate candidate, final boolean stage) {
+        File file = candidate.getFile();
+        File wcFile = candidate.getWorkingCopyFile();
+        String checksum = null;
+        try {
+            if (wcFile.isFile()) {
+                checksum = wcClient.doInfo(wcFile, SVNRevision.WORKING)
+                    .getChecksum();
+            }
+        } catch (SVNException svne) {
+            checksum = null;
+        }
+        String algorithm = ContentDigest.algorithmOf(checksum);
+        if (null == algorithm) {
+            metrics.add(PublishMetrics.Counter.BYTES_COMPARED, file.length()
+                + wcFile.length());
+            if (!stage) {
+                return SVNForceImport.fileContentsEquals(file, wcFile);
+            }
+            FileComparator.Update update = FileComparator.update(file, wcFile);
+            candidate.setStaged(update == FileComparator.Update.UPDATED);
+            return update == FileComparator.Update.EQUAL;
+        }
+
+        // the working copy file may still hold a copy staged by an earlier
+        // publish that never got committed
+        if (file.length() != wcFile.length()) {
+            return false;
+        }
+        try {
+            return ContentDigest.strip(checksum).equalsIgnoreCase(
+                digests.digest(file, algorithm));
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    /**
+     * Examines candidates using the session of one thread.
+     */
+    private class Worker {
+        private final SVNSessionPool.Session session;
+        private final SVNRepository repository;
+
+        Worker(final SVNSessionPool.Session session) {
+            this.session = session;
+            this.repository = session.getRepository();
+        }
+
+        void examine(final ImportCandidate candidate, final boolean stage)
+            throws SVNException {
+            long started = PublishMetrics.start();
+            try {
+                compare(candidate, stage);
+            } finally {
+                metrics.add(PublishMetrics.Phase.COMPARE, started);
+            }
+            if (stage
+                && candidate.getStatus() == ImportCandidate.Status.CHANGED
+                && null != candidate.getWorkingCopyFile()
+                && !candidate.isStaged()) {
+                started = PublishMetrics.start();
+                candidate.setStaged(SVNForceImport.copyFile(candidate
+                    .getFile(), candidate.getWorkingCopyFile()));
+                metrics.add(PublishMetrics.Phase.COPY, started);
+            }
+        }
+
+        private void compare(final ImportCandidate candidate,
+            final boolean stage) throws SVNException {
+
+            RemoteIndex.Entry entry = index.getEntry(candidate
+                .getRepositoryPath());
+            if (null != entry) {
+                // a commit replacing the file is out of date once it changes
+                candidate.setBaseRevision(entry.getRevision());
+            }
+            if (null == entry || entry.getKind() == SVNNodeKind.NONE) {
+                candidate.setStatus(ImportCandidate.Status.NEW);
+            } else if (entry.getKind() == SVNNodeKind.DIR
+                && (null != candidate.getRemoteFile() || !candidate
+                    .getFile().isDirectory())) {
+                // refused here, the commit could only fail part way through
+                throw new SVNException(SVNErrorMessage.create(
+                    SVNErrorCode.FS_NOT_FILE, candidate.getRepositoryPath()
+                        + " is a folder in the repository, but "
+                        + candidate.getFile() + " is a file"));
+            } else if (null == candidate.getWorkingCopyFile()) {
+                candidate.setStatus(entry.getSize() == candidate.getLength()
+                    && remoteContentsEqual(candidate)
+                    ? ImportCandidate.Status.UNCHANGED
+                    : ImportCandidate.Status.CHANGED);
+            } else if (contentsEqual(session.getClientManager()
+                .getWCClient(), candidate, stage)) {
+                candidate.setStatus(ImportCandidate.Status.UNCHANGED);
+            } else {
+                candidate.setStatus(ImportCandidate.Status.CHANGED);
+            }
+        }
+
+        /**
+         * Compare a local file with the checksum of the file in the
+         * repository, without fetching its contents.
+         */
+        private boolean remoteContentsEqual(final ImportCandidate candidate)
+            throws SVNException {
+            SVNProperties props = new SVNProperties();
+            repository.getFile(candidate.getRepositoryPath(), -1, props, null);
+            metrics.count(PublishMetrics.Counter.ROUND_TRIPS);
+            String checksum = props.getStringValue(SVNProperty.CHECKSUM);
+            candidate.setBaseChecksum(checksum);
+            if (null == checksum) {
+                return false;
+            }
+            if (null != candidate.getDigest()) {
+                return checksum.equalsIgnoreCase(candidate.getDigest());
+            }
+            try {
+                return checksum.equalsIgnoreCase(digests.digest(candidate
+                    .getFile(), ContentDigest.MD5));
+            } catch (IOException ioe) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Names the planner threads and keeps them from holding up shutdown.
+     */
+    private static class PlannerThreadFactory implements ThreadFactory {
+        private static final AtomicInteger COUNT = new AtomicInteger();
+
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(r, "SVN Publisher planner "
+                + COUNT.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
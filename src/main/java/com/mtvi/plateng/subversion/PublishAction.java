@@ -0,0 +1,151 @@
+package com.mtvi.plateng.subversion;
+
+import hudson.model.Action;
+import hudson.model.Api;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Records on a build how its publish went, with the time each phase took and
+ * the work it did. The record is available from the build's
+ * svnpublisher/api.
+ *
+ * An asynchronous publish runs after the build has finished, so its log is
+ * written to a file in the build's directory rather than to the console. A
+ * publish still queued or running when Jenkins stopped is never resumed, and
+ * is recorded as failed when the build is loaded again.
+ */
+@ExportedBean
+public class PublishAction implements Action {
+
+    /**
+     * Where a publish has got to.
+     */
+    public enum Status {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, SUPERSEDED
+    }
+
+    /**
+     * The file in the build's directory the publish logs to.
+     */
+    public static final String LOG = "svnpublisher.log";
+
+    private final String svnUrl;
+
+    private volatile Status status = Status.QUEUED;
+
+    private final long queued;
+
+    private volatile long started;
+
+    private volatile long finished;
+
+    private final PublishMetrics metrics = new PublishMetrics();
+
+    /**
+     * @param svnUrl
+     *            The url being published to.
+     */
+    public PublishAction(final String svnUrl) {
+        this.svnUrl = svnUrl;
+        this.queued = System.currentTimeMillis();
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Subversion publish";
+    }
+
+    public String getUrlName() {
+        return "svnpublisher";
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    @Exported
+    public String getSvnUrl() {
+        return svnUrl;
+    }
+
+    @Exported
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the time and work of the publish.
+     */
+    @Exported(inline = true)
+    public PublishMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return how long the publish waited in the queue, in milliseconds.
+     */
+    @Exported
+    public long getQueueTime() {
+        return (0 == started ? System.currentTimeMillis() : started) - queued;
+    }
+
+    /**
+     * @return how long the publish took, in milliseconds, 0 if it has not
+     *         finished.
+     */
+    @Exported
+    public long getDuration() {
+        return 0 == finished ? 0 : finished - started;
+    }
+
+    /**
+     * Record that the publish has left the queue.
+     */
+    public void started() {
+        started = System.currentTimeMillis();
+        status = Status.RUNNING;
+    }
+
+    /**
+     * Record that the publish was skipped because a newer build of the job
+     * publishes to the same destination.
+     */
+    public void superseded() {
+        started = System.currentTimeMillis();
+        status = Status.SUPERSEDED;
+    }
+
+    /**
+     * A publish that was queued or running when the build was saved did not
+     * survive the restart that loaded it.
+     */
+    private Object readResolve() {
+        if (status == Status.QUEUED || status == Status.RUNNING) {
+            if (0 == started) {
+                started = queued;
+            }
+            finished = started;
+            status = Status.FAILED;
+        }
+        return this;
+    }
+
+    /**
+     * Record the outcome of the publish. A superseded publish stays
+     * superseded.
+     *
+     * @param succeeded
+     *            true if every item was published.
+     */
+    public void finished(final boolean succeeded) {
+        finished = System.currentTimeMillis();
+        if (status != Status.SUPERSEDED) {
+            status = succeeded ? Status.SUCCEEDED : Status.FAILED;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.mtvi.plateng.subversion;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes publishes to the same destination, so that builds of one job, or
+ * of jobs sharing a repository location, do not update and commit over each
+ * other.
+ *
+ * Destinations are mapped onto a fixed set of fair locks, so publishes to one
+ * destination run one at a time and in the order they arrived, while
+ * publishes to unrelated destinations rarely wait for each other.
+ *
+ * A publish may ask to be coalesced: if a newer publish from the same source
+ * to the same destination arrives before it gets to run, it is skipped, as
+ * the newer one would overwrite everything it publishes anyway.
+ */
+public class PublishCoordinator {
+
+    /**
+     * The number of locks destinations are spread over.
+     */
+    static final int STRIPES = 64;
+
+    /**
+     * A publish that has arrived at the coordinator.
+     */
+    public static class Ticket {
+        private final String destination;
+        private final String source;
+        private final long number;
+        private boolean locked;
+
+        Ticket(final String destination, final String source, final long number) {
+            this.destination = destination;
+            this.source = source;
+            this.number = number;
+        }
+    }
+
+    /**
+     * The publishes pending for one destination and source.
+     */
+    private static class Pending {
+        private long latest;
+        private int count;
+    }
+
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+    private final Map<String, Pending> pending = new HashMap<String, Pending>();
+
+    private long sequence;
+
+    public PublishCoordinator() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock(true);
+        }
+    }
+
+    /**
+     * Record the arrival of a publish. Every ticket must be given back with
+     * exit().
+     *
+     * @param svnUrl
+     *            The url being published to.
+     * @param source
+     *            What is being published, publishes of the same source
+     *            coalesce.
+     * @return the publish's ticket.
+     */
+    public Ticket enter(final String svnUrl, final String source) {
+        String destination = normalize(svnUrl);
+        synchronized (pending) {
+            Ticket ticket = new Ticket(destination, source, ++sequence);
+            String key = keyOf(ticket);
+            Pending p = pending.get(key);
+            if (null == p) {
+                p = new Pending();
+                pending.put(key, p);
+            }
+            p.latest = ticket.number;
+            p.count++;
+            return ticket;
+        }
+    }
+
+    /**
+     * Wait until no other publish to the ticket's destination is running.
+     *
+     * @param ticket
+     *            The publish's ticket.
+     * @param coalesce
+     *            true to skip the publish if a newer one of the same source
+     *            has arrived.
+     * @return true if the publish should run, false if it was coalesced.
+     * @throws InterruptedException
+     */
+    public boolean acquire(final Ticket ticket, final boolean coalesce)
+        throws InterruptedException {
+        ReentrantLock lock = lockOf(ticket.destination);
+        lock.lockInterruptibly();
+        ticket.locked = true;
+        if (coalesce && isSuperseded(ticket)) {
+            lock.unlock();
+            ticket.locked = false;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param ticket
+     *            A ticket that has not been acquired.
+     * @return true if no publish to the ticket's destination is running.
+     */
+    public boolean isIdle(final Ticket ticket) {
+        return !lockOf(ticket.destination).isLocked();
+    }
+
+    /**
+     * Finish a publish, letting the next publish to the destination run.
+     *
+     * @param ticket
+     *            The publish's ticket.
+     */
+    public void exit(final Ticket ticket) {
+        if (ticket.locked) {
+            ticket.locked = false;
+            lockOf(ticket.destination).unlock();
+        }
+        synchronized (pending) {
+            String key = keyOf(ticket);
+            Pending p = pending.get(key);
+            if (null != p && --p.count == 0) {
+                pending.remove(key);
+            }
+        }
+    }
+
+    private boolean isSuperseded(final Ticket ticket) {
+        synchronized (pending) {
+            Pending p = pending.get(keyOf(ticket));
+            return null != p && p.latest > ticket.number;
+        }
+    }
+
+    private ReentrantLock lockOf(final String destination) {
+        return locks[(destination.hashCode() & 0x7fffffff) % locks.length];
+    }
+
+    private static String keyOf(final Ticket ticket) {
+        return ticket.destination + "\n" + ticket.source;
+    }
+
+    private static String normalize(final String svnUrl) {
+        String destination = svnUrl.trim();
+        while (destination.endsWith("/")) {
+            destination = destination.substring(0, destination.length() - 1);
+        }
+        return destination;
+    }
+}
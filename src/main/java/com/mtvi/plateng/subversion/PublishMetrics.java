@@ -0,0 +1,197 @@
+package com.mtvi.plateng.subversion;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * How long each phase of a publish took and how much work it did. Phases
+ * run by the planner's threads are summed over the threads, so with more
+ * than one thread they may add up to more than the publish took.
+ *
+ * Metrics are updated from several threads and kept with the build, so they
+ * only hold plain counts.
+ */
+@ExportedBean(defaultVisibility = 2)
+public class PublishMetrics implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The timed parts of a publish.
+     */
+    public enum Phase {
+        /**
+         * Finding the files items match.
+         */
+        SCAN,
+        /**
+         * Checking out working copies.
+         */
+        CHECKOUT,
+        /**
+         * Updating and reverting working copies.
+         */
+        UPDATE,
+        /**
+         * Deciding which files are new or changed.
+         */
+        COMPARE,
+        /**
+         * Copying changed files into working copies.
+         */
+        COPY,
+        /**
+         * Committing directories and files.
+         */
+        COMMIT,
+        /**
+         * The whole publish, retries included.
+         */
+        TOTAL
+    }
+
+    /**
+     * The counted work of a publish.
+     */
+    public enum Counter {
+        FILES_SCANNED, BYTES_HASHED, BYTES_COMPARED, BYTES_SENT, ROUND_TRIPS,
+        REVISIONS
+    }
+
+    private final long[] nanos = new long[Phase.values().length];
+
+    private final long[] counts = new long[Counter.values().length];
+
+    /**
+     * @return the time to pass to add() when a phase ends.
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Add the time since a phase started.
+     *
+     * @param phase
+     *            The phase.
+     * @param started
+     *            What start() returned when the phase started.
+     */
+    public synchronized void add(final Phase phase, final long started) {
+        nanos[phase.ordinal()] += System.nanoTime() - started;
+    }
+
+    /**
+     * @param counter
+     *            The counter.
+     * @param amount
+     *            How much to add to it.
+     */
+    public synchronized void add(final Counter counter, final long amount) {
+        counts[counter.ordinal()] += amount;
+    }
+
+    /**
+     * @param counter
+     *            The counter to add one to.
+     */
+    public void count(final Counter counter) {
+        add(counter, 1);
+    }
+
+    /**
+     * @param phase
+     *            The phase.
+     * @return the time the phase took, in milliseconds.
+     */
+    public synchronized long getMillis(final Phase phase) {
+        return nanos[phase.ordinal()] / 1000000L;
+    }
+
+    /**
+     * @param counter
+     *            The counter.
+     * @return the count.
+     */
+    public synchronized long get(final Counter counter) {
+        return counts[counter.ordinal()];
+    }
+
+    /**
+     * @return the time each phase took, in milliseconds, by phase name.
+     */
+    @Exported
+    public Map<String, Long> getPhases() {
+        Map<String, Long> phases = new LinkedHashMap<String, Long>();
+        for (Phase phase : Phase.values()) {
+            phases.put(nameOf(phase), getMillis(phase));
+        }
+        return phases;
+    }
+
+    /**
+     * @return every count, by counter name.
+     */
+    @Exported
+    public Map<String, Long> getCounters() {
+        Map<String, Long> counters = new LinkedHashMap<String, Long>();
+        for (Counter counter : Counter.values()) {
+            counters.put(nameOf(counter), get(counter));
+        }
+        return counters;
+    }
+
+    /**
+     * Time and count the files of a match as they are found.
+     *
+     * @param files
+     *            The files matched by an item.
+     * @return the same files.
+     */
+    public Iterable<File> scanned(final Iterable<File> files) {
+        return new Iterable<File>() {
+            public Iterator<File> iterator() {
+                final Iterator<File> i = files.iterator();
+                return new Iterator<File>() {
+                    public boolean hasNext() {
+                        long started = start();
+                        try {
+                            return i.hasNext();
+                        } finally {
+                            add(Phase.SCAN, started);
+                        }
+                    }
+
+                    public File next() {
+                        File file = i.next();
+                        count(Counter.FILES_SCANNED);
+                        return file;
+                    }
+
+                    public void remove() {
+                        i.remove();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @return the name an enum constant is exported under, as in
+     *         "filesScanned".
+     */
+    private static String nameOf(final Enum<?> constant) {
+        StringBuilder name = new StringBuilder();
+        for (String word : constant.name().toLowerCase().split("_")) {
+            name.append(name.length() == 0 ? word : Character
+                .toUpperCase(word.charAt(0))
+                + word.substring(1));
+        }
+        return name.toString();
+    }
+}
@@ -0,0 +1,309 @@
+package com.mtvi.plateng.subversion;
+
+import hudson.FilePath;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Optional behaviour of a publish. The defaults reproduce the original
+ * behaviour of SVNForceImport.
+ */
+public class PublishOptions {
+
+    /**
+     * Send all directory creations, additions and modifications of every
+     * ImportItem to the repository in a single commit.
+     */
+    private boolean atomicCommit;
+
+    /**
+     * The number of matched files examined at once, 0 to use one thread per
+     * available processor.
+     */
+    private int threads;
+
+    /**
+     * Compare against the repository's checksums and commit through the
+     * commit editor without checking out a working copy. Implies an atomic
+     * commit.
+     */
+    private boolean remoteOnly;
+
+    /**
+     * The file the digests of local files are remembered in between
+     * publishes, null to remember them for one publish only.
+     */
+    private File digestCache;
+
+    /**
+     * The workspace when it is held by a build agent. Files are then matched
+     * and digested on the agent, and publishing does not use a working copy.
+     */
+    private FilePath remoteWorkspace;
+
+    /**
+     * The number of times a publish that collided with another commit to the
+     * destination is tried again.
+     */
+    private int commitRetries = 3;
+
+    /**
+     * Where the time and work of the publish are recorded.
+     */
+    private PublishMetrics metrics = new PublishMetrics();
+
+    /**
+     * The cache working copies are leased from, null to keep them in svntemp
+     * below the target directory.
+     */
+    private WorkingCopyCache workingCopyCache;
+
+    /**
+     * Skip destinations whose files digest to the value kept in their
+     * directory's property by the last publish.
+     */
+    private boolean treeHash;
+
+    /**
+     * Where the paths of contents already in the repository are found and
+     * recorded, null to send the contents of every new file.
+     */
+    private ContentIndex contentIndex;
+
+    /**
+     * MD5 digests already known for local files, by absolute path, used
+     * instead of reading the files that have not changed since.
+     */
+    private Map<String, DigestCache.Known> knownDigests;
+
+    /**
+     * Receives the MD5 digest of every file published, by absolute path,
+     * null if they are not collected.
+     */
+    private Map<String, String> fingerprints;
+
+    /**
+     * The MD5 digest of every file matched when the build finished, by
+     * absolute path, for a publish that runs later. Files that no longer
+     * match it are not published. Null to publish the files as they are.
+     */
+    private Map<String, String> snapshot;
+
+    public PublishOptions() {
+
+    }
+
+    /**
+     * @return true if the whole publish is committed at once.
+     */
+    public boolean isAtomicCommit() {
+        return atomicCommit || isRemoteOnly();
+    }
+
+    /**
+     * @param atomicCommit
+     *            true to commit the whole publish at once.
+     */
+    public void setAtomicCommit(final boolean atomicCommit) {
+        this.atomicCommit = atomicCommit;
+    }
+
+    /**
+     * @return the number of matched files examined at once.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads
+     *            the number of matched files examined at once, 0 to use one
+     *            thread per available processor.
+     */
+    public void setThreads(final int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @return true if no working copy is used.
+     */
+    public boolean isRemoteOnly() {
+        return remoteOnly || null != remoteWorkspace;
+    }
+
+    /**
+     * @param remoteOnly
+     *            true to publish without a working copy.
+     */
+    public void setRemoteOnly(final boolean remoteOnly) {
+        this.remoteOnly = remoteOnly;
+    }
+
+    /**
+     * @return the file local digests are remembered in, may be null.
+     */
+    public File getDigestCache() {
+        return digestCache;
+    }
+
+    /**
+     * @param digestCache
+     *            the file local digests are remembered in, null to remember
+     *            them for one publish only.
+     */
+    public void setDigestCache(final File digestCache) {
+        this.digestCache = digestCache;
+    }
+
+    /**
+     * @return the workspace held by a build agent, null if the workspace is
+     *         local.
+     */
+    public FilePath getRemoteWorkspace() {
+        return remoteWorkspace;
+    }
+
+    /**
+     * @param remoteWorkspace
+     *            the workspace held by a build agent, null if the workspace
+     *            is local.
+     */
+    public void setRemoteWorkspace(final FilePath remoteWorkspace) {
+        this.remoteWorkspace = remoteWorkspace;
+    }
+
+    /**
+     * @return the number of times a publish that collided with another
+     *         commit is tried again.
+     */
+    public int getCommitRetries() {
+        return commitRetries;
+    }
+
+    /**
+     * @param commitRetries
+     *            the number of times a publish that collided with another
+     *            commit is tried again, 0 never to retry.
+     */
+    public void setCommitRetries(final int commitRetries) {
+        this.commitRetries = commitRetries;
+    }
+
+    /**
+     * @return where the time and work of the publish are recorded.
+     */
+    public PublishMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics
+     *            where the time and work of the publish are recorded.
+     */
+    public void setMetrics(final PublishMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the cache working copies are leased from, null if they are kept
+     *         below the target directory.
+     */
+    public WorkingCopyCache getWorkingCopyCache() {
+        return workingCopyCache;
+    }
+
+    /**
+     * @param workingCopyCache
+     *            the cache working copies are leased from, null to keep them
+     *            below the target directory.
+     */
+    public void setWorkingCopyCache(final WorkingCopyCache workingCopyCache) {
+        this.workingCopyCache = workingCopyCache;
+    }
+
+    /**
+     * @return true if unchanged destinations are skipped.
+     */
+    public boolean isTreeHash() {
+        return treeHash;
+    }
+
+    /**
+     * @param treeHash
+     *            true to skip unchanged destinations.
+     */
+    public void setTreeHash(final boolean treeHash) {
+        this.treeHash = treeHash;
+    }
+
+    /**
+     * @return the index new files are copied from, null if they are always
+     *         sent.
+     */
+    public ContentIndex getContentIndex() {
+        return contentIndex;
+    }
+
+    /**
+     * @param contentIndex
+     *            the index new files are copied from, null to always send
+     *            them.
+     */
+    public void setContentIndex(final ContentIndex contentIndex) {
+        this.contentIndex = contentIndex;
+    }
+
+    /**
+     * @return the MD5 digests already known for local files, by absolute
+     *         path, null if none are.
+     */
+    public Map<String, DigestCache.Known> getKnownDigests() {
+        return knownDigests;
+    }
+
+    /**
+     * @param knownDigests
+     *            the MD5 digests already known for local files, by absolute
+     *            path.
+     */
+    public void setKnownDigests(
+        final Map<String, DigestCache.Known> knownDigests) {
+        this.knownDigests = knownDigests;
+    }
+
+    /**
+     * @return the map receiving the MD5 digest of every file published, by
+     *         absolute path, null if they are not collected.
+     */
+    public Map<String, String> getFingerprints() {
+        return fingerprints;
+    }
+
+    /**
+     * @param fingerprints
+     *            the map receiving the MD5 digest of every file published,
+     *            by absolute path, null not to collect them.
+     */
+    public void setFingerprints(final Map<String, String> fingerprints) {
+        this.fingerprints = fingerprints;
+    }
+
+    /**
+     * @return the MD5 digest of every file matched when the build finished,
+     *         by absolute path, null if the files are published as they are.
+     */
+    public Map<String, String> getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @param snapshot
+     *            the MD5 digest of every file matched when the build
+     *            finished, by absolute path, null to publish the files as
+     *            they are.
+     */
+    public void setSnapshot(final Map<String, String> snapshot) {
+        this.snapshot = snapshot;
+    }
+}
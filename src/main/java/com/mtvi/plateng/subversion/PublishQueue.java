@@ -0,0 +1,116 @@
+package com.mtvi.plateng.subversion;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs publishes in the background so that builds publishing asynchronously
+ * give their executor back as soon as the publish has been queued.
+ *
+ * A fixed number of publishes run at once and a bounded number wait. When
+ * the queue is full, submitting blocks until a publish finishes, so a burst
+ * of builds slows down instead of queueing an unbounded amount of work.
+ *
+ * The limits can be changed with the system properties
+ * com.mtvi.plateng.subversion.PublishQueue.threads and
+ * com.mtvi.plateng.subversion.PublishQueue.depth.
+ */
+public class PublishQueue {
+
+    /**
+     * The number of publishes run at once.
+     */
+    static final int THREADS = Integer.getInteger(PublishQueue.class.getName()
+        + ".threads", 2);
+
+    /**
+     * The number of publishes that may wait for a thread.
+     */
+    static final int DEPTH = Integer.getInteger(PublishQueue.class.getName()
+        + ".depth", 16);
+
+    private final int capacity;
+
+    private final Semaphore permits;
+
+    private final ExecutorService executor;
+
+    public PublishQueue() {
+        this(THREADS, DEPTH);
+    }
+
+    /**
+     * @param threads
+     *            The number of publishes run at once.
+     * @param depth
+     *            The number of publishes that may wait for a thread.
+     */
+    public PublishQueue(final int threads, final int depth) {
+        int workers = Math.max(threads, 1);
+        this.capacity = workers + Math.max(depth, 0);
+        this.permits = new Semaphore(capacity, true);
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+            new PublishThreadFactory());
+    }
+
+    /**
+     * Queue a publish, waiting for room in the queue if it is full.
+     *
+     * @param publish
+     *            The publish to run.
+     * @throws InterruptedException
+     *             if interrupted while waiting for room.
+     */
+    public void submit(final Runnable publish) throws InterruptedException {
+        permits.acquire();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        publish.run();
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            permits.release();
+            throw ree;
+        }
+    }
+
+    /**
+     * @return the number of publishes running or waiting.
+     */
+    public int getPending() {
+        return capacity - permits.availablePermits();
+    }
+
+    /**
+     * Stop taking publishes. Publishes already queued still run.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Names the publish threads and keeps them from holding up shutdown.
+     */
+    private static class PublishThreadFactory implements ThreadFactory {
+        private static final AtomicInteger COUNT = new AtomicInteger();
+
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(r, "SVN Publisher queue "
+                + COUNT.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
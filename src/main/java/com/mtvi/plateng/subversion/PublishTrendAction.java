@@ -0,0 +1,118 @@
+package com.mtvi.plateng.subversion;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Api;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Gathers the publish records of a job's recent builds, so that publish
+ * times can be charted and regressions spotted from the job's
+ * svnpublisher/api.
+ */
+@ExportedBean
+public class PublishTrendAction implements Action {
+
+    /**
+     * The number of recent builds looked at.
+     */
+    static final int BUILDS = 50;
+
+    /**
+     * The publish of one build.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static class Entry {
+        private final int number;
+        private final PublishAction publish;
+
+        Entry(final int number, final PublishAction publish) {
+            this.number = number;
+            this.publish = publish;
+        }
+
+        @Exported
+        public int getNumber() {
+            return number;
+        }
+
+        @Exported(inline = true)
+        public PublishAction getPublish() {
+            return publish;
+        }
+    }
+
+    private final AbstractProject<?, ?> project;
+
+    public PublishTrendAction(final AbstractProject<?, ?> project) {
+        this.project = project;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Subversion publish trend";
+    }
+
+    public String getUrlName() {
+        return "svnpublisher";
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    /**
+     * @return the publishes of the recent builds, newest first.
+     */
+    @Exported
+    public List<Entry> getBuilds() {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (AbstractBuild<?, ?> build : project.getBuilds()) {
+            if (entries.size() >= BUILDS) {
+                break;
+            }
+            PublishAction publish = build.getAction(PublishAction.class);
+            if (null != publish && null != publish.getMetrics()) {
+                entries.add(new Entry(build.getNumber(), publish));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return the mean time of each phase over the recent builds whose
+     *         publish succeeded, in milliseconds.
+     */
+    @Exported
+    public Map<String, Long> getAveragePhases() {
+        Map<String, Long> totals = new LinkedHashMap<String, Long>();
+        int count = 0;
+        for (Entry entry : getBuilds()) {
+            if (entry.publish.getStatus() != PublishAction.Status.SUCCEEDED) {
+                continue;
+            }
+            count++;
+            for (Map.Entry<String, Long> phase : entry.publish.getMetrics()
+                .getPhases().entrySet()) {
+                Long total = totals.get(phase.getKey());
+                totals.put(phase.getKey(), (null == total ? 0 : total)
+                    + phase.getValue());
+            }
+        }
+        for (Map.Entry<String, Long> total : totals.entrySet()) {
+            total.setValue(total.getValue() / count);
+        }
+        return totals;
+    }
+}
@@ -0,0 +1,169 @@
+package com.mtvi.plateng.subversion;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.tmatesoft.svn.core.SVNDirEntry;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNNodeKind;
+import org.tmatesoft.svn.core.io.SVNRepository;
+
+/**
+ * Answers existence and kind queries about paths in the repository from
+ * directory listings, so that each directory costs a single getDir round trip
+ * however many of its entries are asked about. Listings are kept for the
+ * lifetime of the index and shared by every ImportItem of a publish.
+ *
+ * Paths are relative to the location the SVNRepository was created for.
+ */
+public class RemoteIndex {
+
+    /**
+     * What a listing knows about one entry of a directory.
+     */
+    public static class Entry {
+        private final SVNNodeKind kind;
+        private final long size;
+        private final long revision;
+
+        Entry(final SVNNodeKind kind, final long size, final long revision) {
+            this.kind = kind;
+            this.size = size;
+            this.revision = revision;
+        }
+
+        public SVNNodeKind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return the size of a file, -1 if unknown.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the revision in which the entry, or anything below it,
+         *         last changed, -1 if unknown.
+         */
+        public long getRevision() {
+            return revision;
+        }
+    }
+
+    private final SVNRepository repository;
+
+    /**
+     * Listings by directory path. A null listing records a path that is not
+     * a directory in the repository.
+     */
+    private final Map<String, Map<String, Entry>> listings = new HashMap<String, Map<String, Entry>>();
+
+    private int roundTrips;
+
+    /**
+     * @param repository
+     *            The repository to list. It is used only while holding the
+     *            index's lock.
+     */
+    public RemoteIndex(final SVNRepository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * @param path
+     *            The path to look up.
+     * @return the kind of node at the path, SVNNodeKind.NONE if it does not
+     *         exist.
+     * @throws SVNException
+     */
+    public SVNNodeKind checkPath(final String path) throws SVNException {
+        String normalized = normalize(path);
+        if (normalized.length() == 0) {
+            return SVNNodeKind.DIR;
+        }
+        Entry entry = getEntry(normalized);
+        return null == entry ? SVNNodeKind.NONE : entry.getKind();
+    }
+
+    /**
+     * @param path
+     *            The path to look up.
+     * @return what the listing of the path's directory says about it, null if
+     *         it does not exist.
+     * @throws SVNException
+     */
+    public synchronized Entry getEntry(final String path) throws SVNException {
+        String normalized = normalize(path);
+        int slash = normalized.lastIndexOf('/');
+        Map<String, Entry> entries = list(slash < 0 ? "" : normalized
+            .substring(0, slash));
+        return null == entries ? null : entries.get(normalized
+            .substring(slash + 1));
+    }
+
+    /**
+     * Record a directory that has been created in the repository since the
+     * index was built.
+     *
+     * @param path
+     *            The path of the new directory.
+     */
+    public synchronized void addedDir(final String path) {
+        String normalized = normalize(path);
+        int slash = normalized.lastIndexOf('/');
+        Map<String, Entry> parent = listings.get(slash < 0 ? ""
+            : normalized.substring(0, slash));
+        if (null != parent) {
+            parent.put(normalized.substring(slash + 1), new Entry(
+                SVNNodeKind.DIR, -1, -1));
+        }
+        listings.put(normalized, new HashMap<String, Entry>());
+    }
+
+    /**
+     * @return the number of listings fetched from the repository.
+     */
+    public synchronized int getRoundTrips() {
+        return roundTrips;
+    }
+
+    private Map<String, Entry> list(final String dir) throws SVNException {
+        if (listings.containsKey(dir)) {
+            return listings.get(dir);
+        }
+        Map<String, Entry> entries = null;
+        if (dir.length() == 0 || checkPath(dir) == SVNNodeKind.DIR) {
+            Collection<SVNDirEntry> dirEntries = new ArrayList<SVNDirEntry>();
+            repository.getDir(dir, -1, null, SVNDirEntry.DIRENT_KIND
+                | SVNDirEntry.DIRENT_SIZE | SVNDirEntry.DIRENT_CREATED_REVISION,
+                dirEntries);
+            roundTrips++;
+            entries = new HashMap<String, Entry>();
+            for (SVNDirEntry dirEntry : dirEntries) {
+                entries.put(dirEntry.getName(), new Entry(dirEntry.getKind(),
+                    dirEntry.getKind() == SVNNodeKind.FILE ? dirEntry
+                        .getSize() : -1, dirEntry.getRevision()));
+            }
+        }
+        listings.put(dir, entries);
+        return entries;
+    }
+
+    private static String normalize(final String path) {
+        StringBuilder normalized = new StringBuilder();
+        for (String segment : path.split("/")) {
+            if (segment.length() == 0) {
+                continue;
+            }
+            if (normalized.length() > 0) {
+                normalized.append('/');
+            }
+            normalized.append(segment);
+        }
+        return normalized.toString();
+    }
+}
@@ -1,39 +1,41 @@
 package com.mtvi.plateng.subversion;
 
+import hudson.FilePath;
+
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.tmatesoft.svn.core.SVNCommitInfo;
 import org.tmatesoft.svn.core.SVNDepth;
+import org.tmatesoft.svn.core.SVNErrorCode;
+import org.tmatesoft.svn.core.SVNErrorMessage;
 import org.tmatesoft.svn.core.SVNException;
 import org.tmatesoft.svn.core.SVNNodeKind;
 import org.tmatesoft.svn.core.SVNProperties;
 import org.tmatesoft.svn.core.SVNURL;
-import org.tmatesoft.svn.core.auth.ISVNAuthenticationManager;
-import org.tmatesoft.svn.core.internal.io.dav.DAVRepositoryFactory;
-import org.tmatesoft.svn.core.internal.io.fs.FSRepositoryFactory;
-import org.tmatesoft.svn.core.internal.io.svn.SVNRepositoryFactoryImpl;
 import org.tmatesoft.svn.core.io.SVNRepository;
-import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
 import org.tmatesoft.svn.core.wc.SVNClientManager;
 import org.tmatesoft.svn.core.wc.SVNCommitClient;
 import org.tmatesoft.svn.core.wc.SVNCommitPacket;
-import org.tmatesoft.svn.core.wc.SVNInfo;
+import org.tmatesoft.svn.core.wc.SVNCopyClient;
+import org.tmatesoft.svn.core.wc.SVNCopySource;
 import org.tmatesoft.svn.core.wc.SVNRevision;
 import org.tmatesoft.svn.core.wc.SVNUpdateClient;
 import org.tmatesoft.svn.core.wc.SVNWCClient;
-import org.tmatesoft.svn.core.wc.SVNWCUtil;
-
-import com.google.common.io.Files;
 
 /**
  * SVNForceImport can be used to import a maven project into an svn repository.
@@ -180,23 +182,111 @@ public class SVNForceImport {
      * @param patchPath
      *            The xml path to the patch version in the pom file.
      */
-    @SuppressWarnings("deprecation")
     public static void forceImport(final String svnURL, final String user,
+        final String password, final String target,
+        final ArrayList<ImportItem> items, final String pomPath,
+        final String majorPath, final String minorPath,
+        final String patchPath, final String workspace,
+        final PrintStream stream) {
+        forceImport(svnURL, user, password, target, items, pomPath,
+            majorPath, minorPath, patchPath, workspace, stream,
+            new PublishOptions(), null);
+    }
+
+    /**
+     * The core SVNForceImport method, used to import files into a repository.
+     * 
+     * @param svnURL
+     *            The url of the repository including path to project root.
+     * @param user
+     *            The username to use for repository access.
+     * @param password
+     *            The password to use for repository access.
+     * @param target
+     *            The path to the local target directory, where items are found.
+     * @param items
+     *            The ImportItems to be imported.
+     * @param pomPath
+     *            The path to the project's pom.xml file.
+     * @param majorPath
+     *            The xml path to the major version in the pom file.
+     * @param minorPath
+     *            The xml path to the minor version in the pom file.
+     * @param patchPath
+     *            The xml path to the patch version in the pom file.
+     * @param options
+     *            The optional behaviour of this publish.
+     * @param sessions
+     *            The pool to lease repository sessions from, null to open
+     *            sessions for this publish only.
+     * @return true if every item was published.
+     */
+    public static boolean forceImport(final String svnURL, final String user,
+        final String password, final String target,
+        final ArrayList<ImportItem> items, final String pomPath,
+        final String majorPath, final String minorPath,
+        final String patchPath, final String workspace,
+        final PrintStream stream, final PublishOptions options,
+        final SVNSessionPool sessions) {
+
+        // a publish that collided with another commit is planned again from
+        // the current state of the repository, so what was committed before
+        // the collision is found unchanged and only the rest is sent
+        CommitRetry retry = new CommitRetry(options.getCommitRetries());
+        long started = PublishMetrics.start();
+        try {
+            for (int attempt = 1;; attempt++) {
+                try {
+                    return importOnce(svnURL, user, password, target, items,
+                        pomPath, majorPath, minorPath, patchPath, workspace,
+                        stream, options, sessions, attempt > 1, retry
+                            .canRetry(attempt));
+                } catch (SVNException svne) {
+                    long delay = retry.delay(attempt);
+                    stream.println("SVN Publisher: Commit result: "
+                        + svne.getMessage() + ", retrying in " + delay
+                        + " ms");
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+        } finally {
+            options.getMetrics().add(PublishMetrics.Phase.TOTAL, started);
+        }
+    }
+
+    /**
+     * Make one attempt at a publish.
+     * 
+     * @param retry
+     *            true if an earlier attempt collided with another commit.
+     * @param retryable
+     *            true to throw a collision with another commit, so that the
+     *            publish can be tried again.
+     * @return true if every item was published.
+     * @throws SVNException
+     *             only a collision with another commit, when retryable.
+     */
+    @SuppressWarnings("deprecation")
+    private static boolean importOnce(final String svnURL, final String user,
         final String password, String target,
         final ArrayList<ImportItem> items, String pomPath,
         final String majorPath, final String minorPath,
-        final String patchPath, String workspace, final PrintStream stream) {
+        final String patchPath, String workspace, final PrintStream stream,
+        final PublishOptions options, final SVNSessionPool sessions,
+        final boolean retry, final boolean retryable) throws SVNException {
 
         if (null != workspace) {
 
-            workspace = workspace.substring(0, workspace.length() - 1);
-            target = target.replaceAll("_WORKSPACE_", workspace);
-            target = target.replaceAll("$WORKSPACE", workspace);
+            target = replaceWorkspace(target, workspace);
             stream.println("SVN Publisher: target: " + target);
 
             if (null != pomPath) {
-                pomPath = pomPath.replaceAll("_WORKSPACE_", workspace);
-                pomPath = pomPath.replaceAll("$WORKSPACE", workspace);
+                pomPath = replaceWorkspace(pomPath, workspace);
                 stream.println("SVN Publisher: pomPath: " + pomPath);
             }
         }
@@ -204,7 +294,11 @@ public class SVNForceImport {
         // target directory is required
         File targetDir = new File(target);
 
-        if (!targetDir.canRead()) {
+        // a workspace held by a build agent is read there, by WorkspaceScan
+        FilePath agentTarget = null == options.getRemoteWorkspace() ? null
+            : new FilePath(options.getRemoteWorkspace().getChannel(), target);
+
+        if (null == agentTarget && !targetDir.canRead()) {
             LOGGER
                 .severe("SVNForceImport Error: target Directory not accessable: "
                     + target);
@@ -219,7 +313,7 @@ public class SVNForceImport {
         // be available
 
         SimplePOMParser spp = new SimplePOMParser();
-        if (null != pomPath) {
+        if (null != pomPath && null == agentTarget) {
 
             File pom = new File(pomPath);
             if (!pom.canRead()) {
@@ -238,25 +332,33 @@ public class SVNForceImport {
             spp.parse(pom);
         }
 
-        DAVRepositoryFactory.setup();
-
-        SVNRepository repository = null;
-        ISVNAuthenticationManager authManager = SVNWCUtil
-            .createDefaultAuthenticationManager();
+        // sessions are only kept past this publish when the caller owns a
+        // pool
+        SVNSessionPool pool = null != sessions ? sessions
+            : new SVNSessionPool();
+        SVNSessionPool.Session session = null;
+        ImportPlanner planner = null;
+        DigestCache digests = new DigestCache(options.getDigestCache());
+        if (null == agentTarget && null != options.getKnownDigests()) {
+            // the build's fingerprints spare reading the files again
+            for (Map.Entry<String, DigestCache.Known> known : options
+                .getKnownDigests().entrySet()) {
+                digests.addKnown(known.getKey(), known.getValue());
+            }
+        }
+        PublishMetrics metrics = options.getMetrics();
+        WorkingCopyCache cache = options.getWorkingCopyCache();
+        ContentIndex contentIndex = options.getContentIndex();
+        Map<String, WorkingCopyCache.Lease> leases = new TreeMap<String, WorkingCopyCache.Lease>();
+        boolean failed = true;
 
-        // create the repo and authManager
+        // lease the repo and authManager
         try {
-            setupProtocols();
-            repository = SVNRepositoryFactory.create(SVNURL
-                .parseURIEncoded(svnURL));
-            if (null != user) {
-                authManager = SVNWCUtil.createDefaultAuthenticationManager(
-                    user, password);
-            }
-            repository.setAuthenticationManager(authManager);
+            session = pool.lease(SVNURL.parseURIEncoded(svnURL), user,
+                password);
+            SVNRepository repository = session.getRepository();
 
-            SVNClientManager ourClientManager = SVNClientManager.newInstance(
-                null, repository.getAuthenticationManager());
+            SVNClientManager ourClientManager = session.getClientManager();
 
             // create the commit client that will do the work
             SVNCommitClient commitClient = ourClientManager.getCommitClient();
@@ -265,11 +367,105 @@ public class SVNForceImport {
 
             SVNWCClient wcClient = ourClientManager.getWCClient();
 
-            // import each item
+            // new files whose contents are already in the repository are
+            // copied from there instead of sent
+            String uuid = null == contentIndex ? null : repository
+                .getRepositoryUUID(true);
+
+            // when committing atomically every change is gathered here and
+            // sent once all items have been processed
+            CommitPlan plan = options.isAtomicCommit() ? new CommitPlan()
+                : null;
+
+            // existence checks are answered from one listing per directory
+            RemoteIndex index = new RemoteIndex(repository);
+
+            // the same listings tell which working copies are current
+            SyncPlanner syncPlanner = new SyncPlanner(index, ourClientManager
+                .getStatusClient());
+
+            // resolve each item and find the files it matches
+            planner = new ImportPlanner(pool, session, index, digests,
+                options.getThreads(), metrics);
+            ArrayList<ImportCandidate> candidates = new ArrayList<ImportCandidate>();
+            ArrayList<File> svnTempDirs = new ArrayList<File>();
+            ArrayList<File> checkedOut = new ArrayList<File>();
+            ArrayList<ImportCandidate> published = new ArrayList<ImportCandidate>();
             String finalName;
             String finalPath;
             String finalPattern;
-            for (ImportItem item : items) {
+
+            // destinations whose files digest to the value they kept from the
+            // last publish are skipped
+            TreeHash treeHash = options.isTreeHash() ? new TreeHash() : null;
+            Set<String> unchanged = Collections.emptySet();
+            List<List<File>> matched = null;
+            if (null != agentTarget) {
+                unchanged = planAgentItems(agentTarget, new WorkspaceScan(
+                    items, pomPath, majorPath, minorPath, patchPath, options
+                        .getKnownDigests()), index,
+                    plan, planner, candidates, svnTempDirs, svnURL, stream,
+                    metrics, treeHash, repository);
+            } else if (null != treeHash) {
+                // match and digest the files of every item first, so the
+                // values of the destinations are known before anything is
+                // checked out
+                matched = new ArrayList<List<File>>();
+                for (ImportItem item : items) {
+                    List<File> files = new ArrayList<File>();
+                    String path = variableReplace(spp, item.getPath());
+                    boolean named = null != item.getName()
+                        && item.getName().length() > 0;
+                    for (File file : metrics.scanned(matchFiles(
+                        variableReplace(spp, item.getPattern()), targetDir))) {
+                        files.add(file);
+                        String name = named ? variableReplace(spp, item
+                            .getName()) : file.getName();
+                        if (null != plan && file.isDirectory()) {
+                            // a folder is sent as the files below it
+                            for (Map.Entry<String, File> entry : expand(file,
+                                name).entrySet()) {
+                                if (entry.getValue().isFile()) {
+                                    treeHash.add(path, entry.getKey(),
+                                        digestOrNull(digests, entry
+                                            .getValue()));
+                                }
+                            }
+                        } else {
+                            treeHash.add(path, name, digestOrNull(digests,
+                                file));
+                        }
+                    }
+                    matched.add(files);
+                }
+                unchanged = treeHash.findUnchanged(repository);
+                metrics.add(PublishMetrics.Counter.ROUND_TRIPS, treeHash
+                    .getPaths().size());
+            }
+
+            // working copies are leased once per destination, however many
+            // items publish to it, and in the order of their URLs, so that
+            // publishes leasing overlapping destinations can not deadlock
+            if (null != cache && !options.isRemoteOnly()) {
+                Set<String> urls = new TreeSet<String>();
+                for (ImportItem item : items) {
+                    String path = variableReplace(spp, item.getPath());
+                    boolean newPath = index.checkPath(path) == SVNNodeKind.NONE;
+                    if (!unchanged.contains(TreeHash.normalize(path))
+                        && !(newPath && null != plan)) {
+                        urls.add(svnURL + "/" + TreeHash.normalize(path));
+                    }
+                }
+                for (String url : urls) {
+                    leases.put(url, leaseWorkingCopy(cache, url, stream));
+                }
+            }
+            Set<File> reverted = new HashSet<File>();
+
+            // the items of a workspace held by an agent were resolved by the
+            // scan
+            for (ImportItem item : null != agentTarget ? Collections
+                .<ImportItem> emptyList() : items) {
                 // if the pom and major/minor/patch paths have been included
                 // attempt to do some simple replacement
                 boolean nullName = false;
@@ -289,39 +485,58 @@ public class SVNForceImport {
                 finalPattern = variableReplace(spp, item.getPattern());
                 finalPath = variableReplace(spp, item.getPath());
 
+                Iterable<File> files = null != matched ? matched
+                    .get(svnTempDirs.size()) : metrics.scanned(matchFiles(
+                    finalPattern, targetDir));
+                if (unchanged.contains(TreeHash.normalize(finalPath))) {
+                    stream.println("SVN Publisher: unchanged: " + svnURL
+                        + "/" + finalPath);
+                    svnTempDirs.add(null);
+                    continue;
+                }
+
+                boolean newPath = index.checkPath(finalPath) == SVNNodeKind.NONE;
+                boolean useWorkingCopy = !options.isRemoteOnly()
+                    && !(newPath && null != plan);
+
                 // Added BZ Checkout
 
                 File svnTempDir = new File(target + File.separator + "svntemp"
                     + File.separator
                     + finalPath.replace("/", File.separator));
-
-                if (svnTempDir.exists()) {
-                    stream.println("SVN Publisher: update: " + svnURL + "/"
-                        + finalPath + " to " + svnTempDir);
-                    long revision = updateClient.doUpdate(svnTempDir,
-                        SVNRevision.HEAD, SVNDepth.INFINITY, true, true);
-                    stream.println("SVN Publisher: revision: " + revision);
-                } else {
-                    stream.println("SVN Publisher: Checkout: " + svnURL + "/"
-                        + finalPath + " to " + svnTempDir);
-                    long revision = updateClient.doCheckout(SVNURL
-                        .parseURIEncoded(svnURL + "/" + finalPath),
-                        svnTempDir, SVNRevision.HEAD, SVNRevision.HEAD,
-                        SVNDepth.INFINITY, true);
-                    stream.println("SVN Publisher: revision: " + revision);
-
+                boolean revert = retry;
+                if (useWorkingCopy && null != cache) {
+                    WorkingCopyCache.Lease lease = leases.get(svnURL + "/"
+                        + TreeHash.normalize(finalPath));
+                    svnTempDir = lease.getDirectory();
+                    revert |= lease.isDirty();
                 }
-                // look for files
+                if (!reverted.add(svnTempDir.getAbsoluteFile())) {
+                    // an earlier item of this publish already reverted the
+                    // working copy and may have staged files in it
+                    revert = false;
+                }
+                svnTempDirs.add(svnTempDir);
 
-                ArrayList<String> changed = new ArrayList<String>();
+                // look for files, examining them as they are found when
+                // there is no working copy to wait for
 
-                ArrayList<File> files = matchFiles(finalPattern, targetDir);
+                ArrayList<ImportCandidate> pending = new ArrayList<ImportCandidate>();
+                ArrayList<File> svnFiles = new ArrayList<File>();
+                boolean found = false;
                 String prefix = "";
-                for (int i = 0; i < files.size(); i++) {
-
-                    ensurePath(repository, commitClient, svnURL, finalPath);
+                for (File file : files) {
+
+                    if (!found) {
+                        found = true;
+                        if (null != plan) {
+                            ensurePath(index, plan, finalPath);
+                        } else {
+                            ensurePath(index, commitClient, svnURL,
+                                finalPath, metrics);
+                        }
+                    }
 
-                    File file = files.get(i);
                     if (!file.canRead()) {
                         LOGGER
                             .severe("SVNForceImport Error: File/Directory not accessable: "
@@ -331,105 +546,829 @@ public class SVNForceImport {
                                 .println("SVN Publisher: Error: File/Directory not accessable: "
                                     + file.getAbsolutePath());
                         }
+                        if (null != plan) {
+                            // left out, as the scan of an agent's workspace
+                            // leaves it out, rather than failing the commit
+                            continue;
+                        }
                     }
 
                     if (nullName) {
                         finalName = file.getName();
                     }
-                    SVNNodeKind nodeKind = repository.checkPath(finalPath
-                        + prefix + finalName, -1);
-                    if (nodeKind == SVNNodeKind.NONE) {
-                        insertItem(commitClient, svnURL + "/" + finalPath,
-                            file, prefix + finalName);
-                        if (null != stream) {
-                            stream.println("SVN Publisher: Importing Item: "
-                                + prefix + finalName);
+                    if (null != plan && file.isDirectory()) {
+                        // a folder is sent as the tree doImport would
+                        // import, compared with the repository file by file
+                        planFolder(index, plan, planner, candidates,
+                            svnTempDirs.size() - 1, file, finalPath, prefix
+                                + finalName, stream, metrics);
+                        continue;
+                    }
+                    File snvFile = null;
+                    if (useWorkingCopy) {
+                        snvFile = new File(svnTempDir.getAbsolutePath()
+                            + File.separator + finalName);
+                        if (!svnFiles.contains(snvFile)) {
+                            svnFiles.add(snvFile);
                         }
+                    }
+                    ImportCandidate candidate = new ImportCandidate(
+                        svnTempDirs.size() - 1, file, finalPath, prefix
+                            + finalName, snvFile);
+                    candidates.add(candidate);
+                    if (useWorkingCopy) {
+                        pending.add(candidate);
                     } else {
+                        planner.submit(candidate, false);
+                    }
 
-                        stream.println("SVN Publisher: Comparing Item: "
-                            + prefix + finalName);
-                        File snvFile = new File(svnTempDir.getAbsolutePath()
-                            + File.separator + finalName);
-                        if (!fileContentsEquals(file, snvFile)) {
-                            if (copyFile(file, snvFile)) {
-                            stream
-                                .println("SVN Publisher: File Copied to: "
-                                    + snvFile);
-
-                            changed.add(finalName);
+                    // prefix = Integer.toString(i + 1);
 
-                            SVNInfo doInfo = wcClient.doInfo(snvFile,
-                                SVNRevision.HEAD);
+                }
 
-                            stream.println("SVN Publisher: Info: "
-                                + doInfo.getPropTime()
-                                + " getCommittedDate: "
-                                + doInfo.getCommittedDate()
-                                + " getRevision: "
-                                + doInfo.getRevision() + " getAuthor: "
-                                + doInfo.getAuthor());
-                            }
+                // the working copy only holds the files this item publishes,
+                // the rest of the destination is never fetched
+                if (newPath && !useWorkingCopy) {
+                    stream.println("SVN Publisher: new path: " + svnURL + "/"
+                        + finalPath);
+                } else if (options.isRemoteOnly()) {
+                    stream.println("SVN Publisher: compare with: " + svnURL
+                        + "/" + finalPath);
+                } else if (newPath && !found) {
+                    stream.println("SVN Publisher: nothing to publish to: "
+                        + svnURL + "/" + finalPath);
+                } else {
+                    long started = PublishMetrics.start();
+                    if (revert && svnTempDir.exists()) {
+                        // drop what the collided or unfinished attempt
+                        // staged, the files are staged again after the
+                        // update
+                        wcClient.doRevert(new File[] { svnTempDir },
+                            SVNDepth.INFINITY, null);
+                    }
+                    List<File> updateFiles = svnFiles;
+                    if (svnTempDir.exists()) {
+                        SyncPlanner.Sync sync = syncPlanner.plan(svnTempDir,
+                            finalPath, svnFiles);
+                        updateFiles = sync.getFiles();
+                        if (sync.isDirectoryBehind()) {
+                            stream.println("SVN Publisher: update: " + svnURL
+                                + "/" + finalPath + " to " + svnTempDir);
+                            long revision = updateClient.doUpdate(svnTempDir,
+                                SVNRevision.HEAD, SVNDepth.EMPTY, true, false);
+                            stream.println("SVN Publisher: revision: "
+                                + revision);
+                            metrics.count(PublishMetrics.Counter.ROUND_TRIPS);
+                        } else {
+                            stream.println("SVN Publisher: up to date: "
+                                + svnTempDir + " last changed in revision "
+                                + sync.getRevision());
                         }
-                        // File[] paths = new File[] { file };
-                        // deleteItem(commitClient, svnURL + "/" + finalPath
-                        // + prefix + finalName);
-                        // if (null != stream) {
-                        // stream
-                        // .println("SVN Publisher: Deleting Remote Item: "
-                        // + prefix + finalName);
-                        // }
-                        // insertItem(commitClient, svnURL + "/" + finalPath,
-                        // files.get(i), prefix + finalName);
-                        // if (null != stream) {
-                        // stream.println("SVN Publisher: Importing Item: "
-                        // + prefix + finalName);
-                        // }
+                        metrics.add(PublishMetrics.Phase.UPDATE, started);
+                    } else {
+                        stream.println("SVN Publisher: Checkout: " + svnURL
+                            + "/" + finalPath + " to " + svnTempDir);
+                        long revision = updateClient.doCheckout(SVNURL
+                            .parseURIEncoded(svnURL + "/" + finalPath),
+                            svnTempDir, SVNRevision.HEAD, SVNRevision.HEAD,
+                            SVNDepth.EMPTY, true);
+                        stream.println("SVN Publisher: revision: " + revision);
+                        metrics.add(PublishMetrics.Phase.CHECKOUT, started);
+                        metrics.count(PublishMetrics.Counter.ROUND_TRIPS);
                     }
+                    if (!updateFiles.isEmpty()) {
+                        started = PublishMetrics.start();
+                        stream.println("SVN Publisher: update: "
+                            + updateFiles.size() + " files in " + svnTempDir);
+                        updateClient.doUpdate(updateFiles
+                            .toArray(new File[updateFiles.size()]),
+                            SVNRevision.HEAD, SVNDepth.EMPTY, true, true);
+                        metrics.add(PublishMetrics.Phase.UPDATE, started);
+                        metrics.count(PublishMetrics.Counter.ROUND_TRIPS);
+                    }
+                    checkedOut.add(svnTempDir);
+                }
 
-                    // prefix = Integer.toString(i + 1);
-
+                for (ImportCandidate candidate : pending) {
+                    planner.submit(candidate, null == plan);
                 }
-                // Temp Path
+            }
 
-                File[] svnTempPath = new File[] { svnTempDir };
+            // wait for the files of every item to be checked, compared and
+            // staged
+            planner.finish();
+            metrics.add(PublishMetrics.Counter.ROUND_TRIPS, index
+                .getRoundTrips());
+            LOGGER.fine("SVNForceImport listed " + index.getRoundTrips()
+                + " directories for " + candidates.size() + " files, "
+                + digests.getHits() + " digests cached, "
+                + digests.getMisses() + " computed");
+
+            // a publish running after its build refuses files that changed
+            // since the build finished
+            Map<String, String> snapshot = options.getSnapshot();
+            if (null != snapshot) {
+                checkSnapshot(snapshot, candidates, digests, unchanged
+                    .isEmpty());
+            }
 
-                SVNInfo doInfo = wcClient.doInfo(svnTempDir, SVNRevision.HEAD);
+            // report and commit in item order so the log does not depend on
+            // which file was examined first
+            int next = 0;
+            for (int itemIndex = 0; itemIndex < svnTempDirs.size(); itemIndex++) {
+                File svnTempDir = svnTempDirs.get(itemIndex);
+
+                ArrayList<File> changed = new ArrayList<File>();
+                ArrayList<ImportCandidate> staged = new ArrayList<ImportCandidate>();
+                long stagedBytes = 0;
+
+                for (; next < candidates.size()
+                    && candidates.get(next).getItem() == itemIndex; next++) {
+                    ImportCandidate candidate = candidates.get(next);
+                    String name = candidate.getName();
+
+                    if (candidate.getStatus() == ImportCandidate.Status.NEW) {
+                        String digest = null;
+                        ContentIndex.Source source = null;
+                        if (null != contentIndex) {
+                            contentIndex.seed(repository, parentOf(candidate
+                                .getPath()));
+                            digest = digestOf(candidate, digests);
+                            source = contentIndex.find(uuid, digest);
+                            if (null != source) {
+                                // an index entry is only a hint, the copy
+                                // must not publish other contents
+                                metrics.count(PublishMetrics.Counter.ROUND_TRIPS);
+                                if (!contentIndex.verify(repository, source,
+                                    digest)) {
+                                    stream.println("SVN Publisher: "
+                                        + source.getPath() + "@"
+                                        + source.getRevision()
+                                        + " no longer matches, sending " + name);
+                                    source = null;
+                                }
+                            }
+                        }
+                        if (null != source) {
+                            stream.println("SVN Publisher: Copying Item: "
+                                + name + " from " + source.getPath() + "@"
+                                + source.getRevision());
+                            if (null != plan) {
+                                plan.copyFile(candidate.getRepositoryPath(),
+                                    source.getPath(), source.getRevision(),
+                                    digest);
+                            } else {
+                                long started = PublishMetrics.start();
+                                SVNCommitInfo info = copyItem(ourClientManager
+                                    .getCopyClient(), repository, source,
+                                    svnURL + "/" + candidate.getRepositoryPath());
+                                metrics.add(PublishMetrics.Phase.COMMIT, started);
+                                metrics.count(PublishMetrics.Counter.ROUND_TRIPS);
+                                metrics.count(PublishMetrics.Counter.REVISIONS);
+                                contentIndex.add(uuid, digest, repository
+                                    .getRepositoryPath(candidate
+                                        .getRepositoryPath()), info
+                                    .getNewRevision());
+                            }
+                            published.add(candidate);
+                            continue;
+                        }
+                        if (null != candidate.getRemoteFile()) {
+                            plan.addFile(candidate.getRepositoryPath(),
+                                candidate.getRemoteFile());
+                        } else if (null != plan) {
+                            plan.addFile(candidate.getRepositoryPath(),
+                                candidate.getFile());
+                        } else {
+                            long started = PublishMetrics.start();
+                            SVNCommitInfo info = insertItem(commitClient,
+                                svnURL + "/" + candidate.getPath(), candidate
+                                    .getFile(), name);
+                            if (null != contentIndex) {
+                                contentIndex.add(uuid, digest, repository
+                                    .getRepositoryPath(candidate
+                                        .getRepositoryPath()), info
+                                    .getNewRevision());
+                            }
+                            metrics.add(PublishMetrics.Phase.COMMIT, started);
+                            metrics.add(PublishMetrics.Counter.BYTES_SENT,
+                                candidate.getLength());
+                            metrics.count(PublishMetrics.Counter.ROUND_TRIPS);
+                            metrics.count(PublishMetrics.Counter.REVISIONS);
+                        }
+                        if (null != stream) {
+                            stream.println("SVN Publisher: Importing Item: "
+                                + name);
+                        }
+                        published.add(candidate);
+                        continue;
+                    }
 
-                stream.println("SVN Publisher: Info: " + doInfo.getPropTime()
-                    + " getCommittedDate: " + doInfo.getCommittedDate()
-                    + " getRevision: " + doInfo.getRevision()
-                    + " getAuthor: " + doInfo.getAuthor());
+                    stream.println("SVN Publisher: Comparing Item: " + name);
+                    if (candidate.getStatus() != ImportCandidate.Status.CHANGED) {
+                        continue;
+                    }
+                    if (null != candidate.getRemoteFile()) {
+                        plan.modifyFile(candidate.getRepositoryPath(),
+                            candidate.getRemoteFile(), candidate
+                                .getBaseChecksum(), candidate
+                                .getBaseRevision());
+                        stream.println("SVN Publisher: Changed Item: " + name);
+                        published.add(candidate);
+                    } else if (null != plan) {
+                        plan.modifyFile(candidate.getRepositoryPath(),
+                            candidate.getFile(), candidate.getBaseChecksum(),
+                            candidate.getBaseRevision());
+                        stream.println("SVN Publisher: Changed Item: " + name);
+                        published.add(candidate);
+                    } else if (candidate.isStaged()) {
+                        File snvFile = candidate.getWorkingCopyFile();
+                        stream.println("SVN Publisher: File Copied to: "
+                            + snvFile);
+
+                        changed.add(snvFile);
+                        staged.add(candidate);
+                        published.add(candidate);
+                        stagedBytes += candidate.getLength();
+                    } else if (null != treeHash) {
+                        // not sent, so the destination's value would be wrong
+                        treeHash.invalidate(candidate.getPath());
+                    }
+                }
+                if (null != plan || !checkedOut.contains(svnTempDir)) {
+                    continue;
+                }
+                if (changed.isEmpty()) {
+                    stream.println("SVN Publisher: nothing to commit in "
+                        + svnTempDir);
+                    continue;
+                }
 
-                SVNCommitPacket ci = commitClient.doCollectCommitItems(
-                    svnTempPath, false, true, SVNDepth.INFINITY, null);
+                // only the staged files are collected, so the cost does not
+                // grow with the rest of the working copy; directories are
+                // created in the repository directly and never added here
+                if (null != snapshot) {
+                    for (ImportCandidate candidate : staged) {
+                        checkSnapshot(snapshot, pathOf(candidate),
+                            digestOrNull(digests, candidate
+                                .getWorkingCopyFile()));
+                    }
+                }
+                long started = PublishMetrics.start();
+                SVNCommitPacket ci = commitClient.doCollectCommitItems(changed
+                    .toArray(new File[changed.size()]), false, true,
+                    SVNDepth.EMPTY, null);
                 stream.println("SVN Publisher: do Commit: " + ci.toString());
 
                 SVNCommitInfo doCommit = commitClient.doCommit(ci, false,
                     "Jenkins");
+                metrics.add(PublishMetrics.Phase.COMMIT, started);
+                metrics.add(PublishMetrics.Counter.BYTES_SENT, stagedBytes);
+                metrics.count(PublishMetrics.Counter.ROUND_TRIPS);
+                if (doCommit.getNewRevision() >= 0) {
+                    metrics.count(PublishMetrics.Counter.REVISIONS);
+                }
+                if (null != contentIndex) {
+                    for (ImportCandidate candidate : staged) {
+                        contentIndex.add(uuid, digestOf(candidate, digests),
+                            repository.getRepositoryPath(candidate
+                                .getRepositoryPath()), doCommit
+                                .getNewRevision());
+                    }
+                }
 
                 stream.println("SVN Publisher: Commit result: "
                     + doCommit.toString());
 
             }
+
+            if (null != treeHash && null != plan) {
+                // a value only counts while its commit is the last to change
+                // the destination
+                treeHash.record(plan, unchanged, repository
+                    .getLatestRevision() + 1);
+                metrics.count(PublishMetrics.Counter.ROUND_TRIPS);
+            }
+            if (null != plan) {
+                if (plan.isEmpty()) {
+                    stream.println("SVN Publisher: nothing to commit");
+                } else {
+                    if (null != snapshot) {
+                        // what is streamed is checked as it is sent
+                        for (ImportCandidate candidate : published) {
+                            plan.expectChecksum(candidate.getRepositoryPath(),
+                                snapshot.get(pathOf(candidate)));
+                        }
+                    }
+                    stream.println("SVN Publisher: do Commit: " + plan.size()
+                        + " changes");
+                    long started = PublishMetrics.start();
+                    SVNCommitInfo doCommit = plan.commit(repository, "Jenkins");
+                    metrics.add(PublishMetrics.Phase.COMMIT, started);
+                    metrics.add(PublishMetrics.Counter.BYTES_SENT, plan
+                        .getBytesSent());
+                    metrics.count(PublishMetrics.Counter.ROUND_TRIPS);
+                    metrics.count(PublishMetrics.Counter.REVISIONS);
+                    stream.println("SVN Publisher: Commit result: "
+                        + doCommit.toString());
+                    if (null != contentIndex) {
+                        for (Map.Entry<String, String> sent : plan
+                            .getChecksums().entrySet()) {
+                            contentIndex.add(uuid, sent.getValue(), repository
+                                .getRepositoryPath(sent.getKey()), doCommit
+                                .getNewRevision());
+                        }
+                    }
+                }
+            }
+            if (null != treeHash && null == plan) {
+                // the working copies were committed item by item, the values
+                // follow once all of them are in
+                CommitPlan values = new CommitPlan();
+                treeHash.record(values, unchanged, repository
+                    .getLatestRevision() + 1);
+                metrics.count(PublishMetrics.Counter.ROUND_TRIPS);
+                if (!values.isEmpty()) {
+                    values.commit(repository, "Jenkins");
+                    metrics.count(PublishMetrics.Counter.ROUND_TRIPS);
+                    metrics.count(PublishMetrics.Counter.REVISIONS);
+                }
+            }
+            if (null != options.getFingerprints()) {
+                fingerprint(options.getFingerprints(), published, plan,
+                    digests);
+            }
+            failed = false;
         } catch (SVNException svne) {
+            if (retryable && CommitRetry.isConflict(svne)) {
+                throw svne;
+            }
             stream
                 .println("SVN Publisher: Commit result: "
                     + svne.getMessage());
             LOGGER.severe("*SVNForceImport Error: " + svne.getMessage());
+        } finally {
+            if (null != planner) {
+                planner.close();
+            }
+            for (WorkingCopyCache.Lease lease : leases.values()) {
+                lease.release(!failed);
+            }
+            if (!leases.isEmpty()) {
+                // only once nothing of this publish is held any more
+                cache.evict();
+            }
+            metrics.add(PublishMetrics.Counter.BYTES_HASHED, digests
+                .getBytesDigested());
+            digests.save();
+            if (null != contentIndex) {
+                contentIndex.save();
+            }
+            if (null != session) {
+                if (failed) {
+                    pool.discard(session);
+                } else {
+                    pool.release(session);
+                }
+            }
+            if (null == sessions) {
+                pool.close();
+            }
+        }
+        return !failed;
+    }
+
+    /**
+     * Plan a matched folder the way doImport would import it: the folders
+     * below it are created where they are missing, and every file below it
+     * becomes a candidate compared with the repository. A folder or file
+     * whose path the repository holds as the other kind is refused before
+     * anything is sent; a file that can not be read is reported and left
+     * out, as WorkspaceScan leaves it out.
+     * 
+     * @param index
+     *            The index of the repository.
+     * @param plan
+     *            The CommitPlan collecting the changes.
+     * @param planner
+     *            The planner examining the files.
+     * @param candidates
+     *            Receives the files found.
+     * @param item
+     *            The index of the ImportItem that matched the folder.
+     * @param folder
+     *            The matched folder.
+     * @param path
+     *            The resolved path of the item within the project.
+     * @param name
+     *            The name the folder is given in the repository.
+     * @param stream
+     *            The build log.
+     * @param metrics
+     *            Where the files found are counted.
+     * @throws SVNException
+     */
+    private static void planFolder(final RemoteIndex index,
+        final CommitPlan plan, final ImportPlanner planner,
+        final List<ImportCandidate> candidates, final int item,
+        final File folder, final String path, final String name,
+        final PrintStream stream, final PublishMetrics metrics)
+        throws SVNException {
+        for (Map.Entry<String, File> entry : expand(folder, name).entrySet()) {
+            File file = entry.getValue();
+            String repositoryPath = path + entry.getKey();
+            SVNNodeKind kind = index.checkPath(repositoryPath);
+            if (file.isDirectory()) {
+                if (kind == SVNNodeKind.FILE) {
+                    throw new SVNException(SVNErrorMessage.create(
+                        SVNErrorCode.FS_NOT_DIRECTORY, repositoryPath
+                            + " is a file in the repository, but " + file
+                            + " is a folder"));
+                }
+                ensurePath(index, plan, repositoryPath);
+                continue;
+            }
+            if (kind == SVNNodeKind.DIR) {
+                throw new SVNException(SVNErrorMessage.create(
+                    SVNErrorCode.FS_NOT_FILE, repositoryPath
+                        + " is a folder in the repository, but " + file
+                        + " is a file"));
+            }
+            if (!file.canRead()) {
+                LOGGER.severe("SVNForceImport Error: File/Directory not accessable: "
+                    + file.getAbsolutePath());
+                stream.println("SVN Publisher: Error: File/Directory not accessable: "
+                    + file.getAbsolutePath());
+                continue;
+            }
+            metrics.count(PublishMetrics.Counter.FILES_SCANNED);
+            ImportCandidate candidate = new ImportCandidate(item, file, path,
+                entry.getKey(), null);
+            candidates.add(candidate);
+            planner.submit(candidate, false);
         }
     }
 
-    private static boolean copyFile(final File file, final File snvFile) {
+    /**
+     * Find and digest the files of every item in a workspace held by a build
+     * agent, and submit them to the planner. Nothing is checked out: the
+     * files are compared with the repository's checksums and their contents
+     * are only streamed from the agent if they have to be committed.
+     * 
+     * @param agentTarget
+     *            The target directory on the agent.
+     * @param scan
+     *            The scan to run on the agent.
+     * @param index
+     *            The index of the repository.
+     * @param plan
+     *            The CommitPlan collecting the changes.
+     * @param planner
+     *            The planner examining the files.
+     * @param candidates
+     *            Receives the files found.
+     * @param svnTempDirs
+     *            Receives a null working copy directory for every item.
+     * @param svnURL
+     *            The URL of the project in the repository.
+     * @param stream
+     *            The build log.
+     * @param metrics
+     *            Where the scan is timed and counted.
+     * @param treeHash
+     *            Receives the digests of the files found, null to publish
+     *            every destination.
+     * @param repository
+     *            The repository the values of the destinations are fetched
+     *            from.
+     * @return the paths of the destinations skipped as unchanged.
+     * @throws SVNException
+     */
+    private static Set<String> planAgentItems(final FilePath agentTarget,
+        final WorkspaceScan scan, final RemoteIndex index,
+        final CommitPlan plan, final ImportPlanner planner,
+        final List<ImportCandidate> candidates, final List<File> svnTempDirs,
+        final String svnURL, final PrintStream stream,
+        final PublishMetrics metrics, final TreeHash treeHash,
+        final SVNRepository repository) throws SVNException {
+
+        WorkspaceScan.Result result;
+        long started = PublishMetrics.start();
+        try {
+            result = agentTarget.act(scan);
+            metrics.add(PublishMetrics.Phase.SCAN, started);
+            metrics.add(PublishMetrics.Counter.BYTES_HASHED, result
+                .getBytesHashed());
+        } catch (IOException ioe) {
+            throw new SVNException(SVNErrorMessage.create(
+                SVNErrorCode.IO_ERROR, ioe.getMessage()), ioe);
+        } catch (InterruptedException ie) {
+            throw new SVNException(SVNErrorMessage.create(
+                SVNErrorCode.CANCELLED, "Interrupted while scanning "
+                    + agentTarget), ie);
+        }
+        for (String error : result.getErrors()) {
+            LOGGER.severe("SVNForceImport Error: " + error);
+            stream.println("SVN Publisher: Error: " + error);
+        }
 
+        Set<String> unchanged = Collections.emptySet();
+        if (null != treeHash) {
+            for (WorkspaceScan.Item item : result.getItems()) {
+                for (WorkspaceScan.MatchedFile file : item.getFiles()) {
+                    treeHash.add(item.getPath(), file.getName(), file
+                        .getDigest());
+                }
+                if (!result.getErrors().isEmpty()) {
+                    // files that could not be read are missing from the values
+                    treeHash.invalidate(item.getPath());
+                }
+            }
+            unchanged = treeHash.findUnchanged(repository);
+            metrics.add(PublishMetrics.Counter.ROUND_TRIPS, treeHash.getPaths()
+                .size());
+        }
+
+        for (WorkspaceScan.Item item : result.getItems()) {
+            int itemIndex = svnTempDirs.size();
+            svnTempDirs.add(null);
+            String finalPath = item.getPath();
+            if (unchanged.contains(TreeHash.normalize(finalPath))) {
+                stream.println("SVN Publisher: unchanged: " + svnURL + "/"
+                    + finalPath);
+                continue;
+            }
+            stream.println("SVN Publisher: compare with: " + svnURL + "/"
+                + finalPath);
+            if (!item.getFiles().isEmpty() || !item.getFolders().isEmpty()) {
+                ensurePath(index, plan, finalPath);
+            }
+            for (String folder : item.getFolders()) {
+                // refused here, the commit could only fail part way through
+                if (index.checkPath(finalPath + folder) == SVNNodeKind.FILE) {
+                    throw new SVNException(SVNErrorMessage.create(
+                        SVNErrorCode.FS_NOT_DIRECTORY, finalPath + folder
+                            + " is a file in the repository, but a folder in "
+                            + agentTarget));
+                }
+                ensurePath(index, plan, finalPath + folder);
+            }
+            for (WorkspaceScan.MatchedFile file : item.getFiles()) {
+                metrics.count(PublishMetrics.Counter.FILES_SCANNED);
+                ImportCandidate candidate = new ImportCandidate(itemIndex,
+                    new File(file.getFile()), finalPath, file.getName(), null);
+                candidate.setRemoteFile(new FilePath(agentTarget.getChannel(),
+                    file.getFile()));
+                candidate.setLength(file.getSize());
+                candidate.setDigest(file.getDigest());
+                candidates.add(candidate);
+                planner.submit(candidate, false);
+            }
+        }
+        return unchanged;
+    }
+
+    /**
+     * Lease the working copy of a destination from the cache, waiting for any
+     * publish holding it.
+     */
+    private static WorkingCopyCache.Lease leaseWorkingCopy(
+        final WorkingCopyCache cache, final String url,
+        final PrintStream stream) throws SVNException {
         try {
-            Files.copy(file, snvFile);
-        } catch (FileNotFoundException e) {
-            return false;
-        } catch (IOException e) {
-            return false;
+            stream.println("SVN Publisher: lease working copy: " + url);
+            return cache.lease(url);
+        } catch (IOException ioe) {
+            throw new SVNException(SVNErrorMessage.create(
+                SVNErrorCode.IO_ERROR, "Unable to lease a working copy of "
+                    + url + ": " + ioe.getMessage()), ioe);
+        }
+    }
+
+    /**
+     * @return the MD5 digest of a candidate's contents, null if it is not
+     *         known and can not be read here.
+     */
+    private static String digestOf(final ImportCandidate candidate,
+        final DigestCache digests) {
+        if (null != candidate.getDigest()) {
+            return candidate.getDigest();
+        }
+        return null != candidate.getRemoteFile() ? null : digestOrNull(
+            digests, candidate.getFile());
+    }
+
+    /**
+     * Hand the MD5 digest of every published file to the fingerprints, taken
+     * from the scan, the commit or the digest cache, which has normally seen
+     * the file already.
+     *
+     * @param fingerprints
+     *            Receives the digests by absolute path.
+     * @param published
+     *            The files added or changed by the publish.
+     * @param plan
+     *            The atomic commit the files were sent in, null if they were
+     *            committed separately.
+     * @param digests
+     *            The cache local digests are taken from.
+     */
+    private static void fingerprint(final Map<String, String> fingerprints,
+        final List<ImportCandidate> published, final CommitPlan plan,
+        final DigestCache digests) {
+        for (ImportCandidate candidate : published) {
+            String digest = null == plan ? null : plan.getChecksums().get(
+                candidate.getRepositoryPath());
+            if (null == digest) {
+                digest = digestOf(candidate, digests);
+            }
+            if (null != digest) {
+                fingerprints.put(pathOf(candidate), digest);
+            }
         }
-        return true;
+    }
+
+    /**
+     * @return the absolute path of a candidate's file, on the machine holding
+     *         the workspace.
+     */
+    private static String pathOf(final ImportCandidate candidate) {
+        return null != candidate.getRemoteFile() ? candidate.getRemoteFile()
+            .getRemote() : candidate.getFile().getAbsolutePath();
+    }
+
+    /**
+     * Match and digest the files a publish would find now, for a publish
+     * that runs later, when the workspace may have changed.
+     *
+     * @param target
+     *            The path to the target directory, where items are found.
+     * @param items
+     *            The ImportItems to be imported.
+     * @param pomPath
+     *            The path to the project's pom.xml file.
+     * @param majorPath
+     *            The xml path to the major version in the pom file.
+     * @param minorPath
+     *            The xml path to the minor version in the pom file.
+     * @param patchPath
+     *            The xml path to the patch version in the pom file.
+     * @param workspace
+     *            The path of the build's workspace.
+     * @param stream
+     *            The build log.
+     * @param options
+     *            The optional behaviour of the publish.
+     * @return the MD5 digest of every matched file, by absolute path.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static Map<String, String> snapshot(final String target,
+        final ArrayList<ImportItem> items, final String pomPath,
+        final String majorPath, final String minorPath,
+        final String patchPath, final String workspace,
+        final PrintStream stream, final PublishOptions options)
+        throws IOException, InterruptedException {
+        String resolvedTarget = null == workspace ? target : replaceWorkspace(
+            target, workspace);
+        String resolvedPom = null == workspace || null == pomPath ? pomPath
+            : replaceWorkspace(pomPath, workspace);
+        WorkspaceScan scan = new WorkspaceScan(items, resolvedPom, majorPath,
+            minorPath, patchPath, options.getKnownDigests());
+        WorkspaceScan.Result result = null == options.getRemoteWorkspace()
+            ? scan.invoke(new File(resolvedTarget), null) : new FilePath(
+                options.getRemoteWorkspace().getChannel(), resolvedTarget)
+                .act(scan);
+        options.getMetrics().add(PublishMetrics.Counter.BYTES_HASHED, result
+            .getBytesHashed());
+        for (String error : result.getErrors()) {
+            stream.println("SVN Publisher: Error: " + error);
+        }
+        Map<String, String> snapshot = new HashMap<String, String>();
+        for (WorkspaceScan.Item item : result.getItems()) {
+            for (WorkspaceScan.MatchedFile file : item.getFiles()) {
+                snapshot.put(file.getFile(), file.getDigest());
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Refuse to publish when the files found are not those of the snapshot.
+     *
+     * @param complete
+     *            true if every item was examined, so that files of the
+     *            snapshot that were not found are gone.
+     */
+    private static void checkSnapshot(final Map<String, String> snapshot,
+        final List<ImportCandidate> candidates, final DigestCache digests,
+        final boolean complete) throws SVNException {
+        Set<String> found = new HashSet<String>();
+        for (ImportCandidate candidate : candidates) {
+            if (null == candidate.getRemoteFile()
+                && candidate.getFile().isDirectory()) {
+                // a folder imported whole was snapshot file by file
+                for (File file : expand(candidate.getFile(),
+                    candidate.getName()).values()) {
+                    if (file.isFile()) {
+                        found.add(file.getAbsolutePath());
+                        checkSnapshot(snapshot, file.getAbsolutePath(),
+                            digestOrNull(digests, file));
+                    }
+                }
+                continue;
+            }
+            String path = pathOf(candidate);
+            found.add(path);
+            checkSnapshot(snapshot, path, digestOf(candidate, digests));
+        }
+        if (complete) {
+            for (String path : snapshot.keySet()) {
+                if (!found.contains(path)) {
+                    throw new SVNException(SVNErrorMessage.create(
+                        SVNErrorCode.CHECKSUM_MISMATCH, path
+                            + " is gone since the build finished"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Refuse to publish a file whose digest is not the one in the snapshot.
+     */
+    private static void checkSnapshot(final Map<String, String> snapshot,
+        final String path, final String digest) throws SVNException {
+        String expected = snapshot.get(path);
+        // a file that could not be read then or now is reported elsewhere
+        if (null == expected ? null != digest : !expected
+            .equalsIgnoreCase(digest)) {
+            throw new SVNException(SVNErrorMessage.create(
+                SVNErrorCode.CHECKSUM_MISMATCH, path
+                    + " changed since the build finished"));
+        }
+    }
+
+    /**
+     * @return the value with the workspace, given with a trailing separator,
+     *         in place of _WORKSPACE_ and $WORKSPACE.
+     */
+    private static String replaceWorkspace(final String value,
+        final String workspace) {
+        String path = workspace.substring(0, workspace.length() - 1);
+        return value.replaceAll("_WORKSPACE_", path).replaceAll("$WORKSPACE",
+            path);
+    }
+
+    /**
+     * @return the path of the directory holding a path, "" for the top.
+     */
+    private static String parentOf(final String path) {
+        String normalized = TreeHash.normalize(path);
+        int slash = normalized.lastIndexOf('/');
+        return slash < 0 ? "" : normalized.substring(0, slash);
+    }
+
+    /**
+     * Add a file to the repository as a copy of a file with the same
+     * contents, in a commit of its own.
+     *
+     * @param client
+     *            The SVNCopyClient to be used to perform the copy.
+     * @param repository
+     *            The repository both files are in.
+     * @param source
+     *            The file with the same contents.
+     * @param fullURL
+     *            The full URL of the new file.
+     * @return The results of the commit.
+     * @throws SVNException
+     */
+    private static SVNCommitInfo copyItem(final SVNCopyClient client,
+        final SVNRepository repository, final ContentIndex.Source source,
+        final String fullURL) throws SVNException {
+        SVNRevision revision = SVNRevision.create(source.getRevision());
+        SVNURL from = repository.getRepositoryRoot(true).appendPath(
+            source.getPath().substring(1), false);
+        return client.doCopy(new SVNCopySource[] { new SVNCopySource(revision,
+            revision, from) }, SVNURL.parseURIEncoded(fullURL), false, false,
+            true, "SVNForceImport copying: " + source.getPath() + "@"
+                + source.getRevision(), null);
+    }
+
+    /**
+     * @return the MD5 digest of a file, null if it can not be read.
+     */
+    private static String digestOrNull(final DigestCache digests,
+        final File file) {
+        try {
+            return digests.digest(file, ContentDigest.MD5);
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    static boolean copyFile(final File file, final File snvFile) {
+        return FileComparator.copy(file, snvFile);
     }
 
     /**
@@ -462,6 +1401,43 @@ public class SVNForceImport {
 
     }
 
+    /**
+     * Record any part of the required path that does not exist in the project
+     * on the repository as a directory to be created by the given plan, and
+     * the revision every part that exists was last changed in.
+     * 
+     * @param index
+     *            The index of the repository to be checked.
+     * @param plan
+     *            The CommitPlan that will create missing directories.
+     * @param path
+     *            The path within the project to be checked.
+     * @return true if the path does not exist in the repository yet.
+     * @throws SVNException
+     */
+    private static boolean ensurePath(final RemoteIndex index,
+        final CommitPlan plan, final String path) throws SVNException {
+        String constructedPath = "";
+        boolean missing = false;
+
+        for (String dir : path.split("/")) {
+            if (dir.length() == 0) {
+                continue;
+            }
+            constructedPath += dir;
+            RemoteIndex.Entry entry = missing ? null : index
+                .getEntry(constructedPath);
+            if (null == entry || entry.getKind() == SVNNodeKind.NONE) {
+                plan.addDir(constructedPath);
+                missing = true;
+            } else {
+                plan.openDir(constructedPath, entry.getRevision());
+            }
+            constructedPath += "/";
+        }
+        return missing;
+    }
+
     /**
      * Delete a given file/folder from the repository.
      * 
@@ -502,43 +1478,54 @@ public class SVNForceImport {
     }
 
     /**
-     * Set up the different repository protocol factories so that
-     * http,https,svn,and file protocols can all be used.
-     */
-    private static void setupProtocols() {
-
-        // http and https
-        DAVRepositoryFactory.setup();
-        // svn
-        SVNRepositoryFactoryImpl.setup();
-        // file
-        FSRepositoryFactory.setup();
-    }
-
-    /**
-     * Search through a given directory and return an ArrayList of any
-     * files/folders who's names match the given pattern.
+     * Search through a given directory for any files/folders who's names, or
+     * paths below it, match the given pattern. The working copies kept in the
+     * directory's svntemp folder are never matched.
      * 
      * @param patternString
-     *            The regular expression pattern to use in matching applicable
-     *            file/folder names
+     *            The pattern to use in matching applicable files/folders, see
+     *            FileMatcher.
      * @param parent
      *            The folder to search for matches in.
-     * @return All files/folders matching the given pattern.
+     * @return All files/folders matching the given pattern, found as the
+     *         iteration proceeds.
      */
-    private static ArrayList<File> matchFiles(final String patternString,
+    static Iterable<File> matchFiles(final String patternString,
         final File parent) {
-        Pattern pattern = Pattern.compile(patternString);
-        Matcher matcher;
-        ArrayList<File> files = new ArrayList<File>();
-        for (File file : parent.listFiles()) {
-            matcher = pattern.matcher(file.getName());
-            if (matcher.matches()) {
-                files.add(file);
+        return FileMatcher.compile(patternString).match(parent,
+            new File(parent, "svntemp"));
+    }
+
+    /**
+     * List a matched file/folder and, for a folder, every file and folder
+     * below it. Working copy administrative folders are left out, as doImport
+     * leaves them out.
+     * 
+     * @param file
+     *            The matched file or folder.
+     * @param name
+     *            The name it is given in the repository.
+     * @return the files and folders by their name in the repository, with
+     *         "/" as separator, every folder before what it holds.
+     */
+    static SortedMap<String, File> expand(final File file, final String name) {
+        SortedMap<String, File> expanded = new TreeMap<String, File>();
+        expand(file, name, expanded);
+        return expanded;
+    }
+
+    private static void expand(final File file, final String name,
+        final Map<String, File> expanded) {
+        expanded.put(name, file);
+        File[] children = file.listFiles();
+        if (null == children) {
+            return;
+        }
+        for (File child : children) {
+            if (!".svn".equals(child.getName())) {
+                expand(child, name + "/" + child.getName(), expanded);
             }
         }
-    return files;
-
     }
 
     /**
@@ -550,7 +1537,7 @@ public class SVNForceImport {
      *            The String to be filtered.
      * @return The new String with variable names replaced with values
      */
-    private static String variableReplace(final SimplePOMParser spp,
+    static String variableReplace(final SimplePOMParser spp,
         String value) {
 
         value = value.replace("_ROOT_", "");
@@ -565,18 +1552,20 @@ public class SVNForceImport {
      * Validate the the required path exists in the project on the repository.
      * If it doesn't then create it.
      * 
-     * @param repository
-     *            The repository to be checked.
+     * @param index
+     *            The index of the repository to be checked.
      * @param commitClient
      *            The SVNCommitClient to be used to preform any commit actions.
      * @param svnURL
      *            The URL of the project in the repository.
      * @param path
      *            The path within the project to be checked/created.
+     * @param metrics
+     *            Where created directories are counted.
      */
-    private static void ensurePath(final SVNRepository repository,
+    private static void ensurePath(final RemoteIndex index,
         final SVNCommitClient commitClient, final String svnURL,
-        final String path) {
+        final String path, final PublishMetrics metrics) {
     String[] dirs = path.split("/");
     String constructedPath = "";
 
@@ -584,11 +1573,15 @@ public class SVNForceImport {
 
         for (String dir : dirs) {
         try {
-            SVNNodeKind nodeKind = repository.checkPath(constructedPath
-                + dir, -1);
+            SVNNodeKind nodeKind = index.checkPath(constructedPath + dir);
             if (nodeKind == SVNNodeKind.NONE) {
+            long started = PublishMetrics.start();
             createDir(commitClient, svnURL + "/" + constructedPath
                 + dir);
+            metrics.add(PublishMetrics.Phase.COMMIT, started);
+            metrics.count(PublishMetrics.Counter.ROUND_TRIPS);
+            metrics.count(PublishMetrics.Counter.REVISIONS);
+            index.addedDir(constructedPath + dir);
             }
             constructedPath += dir + "/";
 
@@ -600,10 +1593,18 @@ public class SVNForceImport {
     }
     }
 
-    private final static int BUFFSIZE = 1024;
-    private static byte buff1[] = new byte[BUFFSIZE];
-    private static byte buff2[] = new byte[BUFFSIZE];
+    private final static int BUFFSIZE = 8192;
 
+    /**
+     * Compare two streams. The buffers are allocated per call so that
+     * concurrent builds can compare at the same time.
+     * 
+     * @param is1
+     *            The first stream.
+     * @param is2
+     *            The second stream.
+     * @return true if both streams hold the same bytes.
+     */
     public static boolean inputStreamEquals(final InputStream is1,
         final InputStream is2) {
         if (is1 == is2) {
@@ -615,6 +1616,8 @@ public class SVNForceImport {
         if (is1 == null || is2 == null) {
             return false;
         }
+        byte buff1[] = new byte[BUFFSIZE];
+        byte buff2[] = new byte[BUFFSIZE];
         try {
             int read1 = -1;
             int read2 = -1;
@@ -654,31 +1657,17 @@ public class SVNForceImport {
         }
     }
 
+    /**
+     * Compare the contents of two files.
+     * 
+     * @param file1
+     *            The first file.
+     * @param file2
+     *            The second file.
+     * @return true if both files exist and have the same contents.
+     * @see FileComparator
+     */
     public static boolean fileContentsEquals(final File file1, final File file2) {
-        InputStream is1 = null;
-        InputStream is2 = null;
-        if (file1.length() != file2.length()) {
-            return false;
-        }
-
-        try {
-            is1 = new FileInputStream(file1);
-            is2 = new FileInputStream(file2);
-
-            return inputStreamEquals(is1, is2);
-
-        } catch (Exception ei) {
-            return false;
-        } finally {
-            try {
-                if (is1 != null) {
-                    is1.close();
-                }
-                if (is2 != null) {
-                    is2.close();
-                }
-            } catch (Exception ei2) {
-            }
-        }
+        return FileComparator.contentsEquals(file1, file2);
     }
 }
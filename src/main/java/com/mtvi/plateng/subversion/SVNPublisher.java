@@ -1,20 +1,31 @@
 package com.mtvi.plateng.subversion;
 
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Fingerprint;
+import hudson.model.Hudson;
 import hudson.model.BuildListener;
+import hudson.model.PeriodicWork;
 import hudson.model.Result;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Fingerprinter;
 import hudson.tasks.Notifier;
 import hudson.tasks.Publisher;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,8 +57,35 @@ public class SVNPublisher extends Notifier {
     private String majorPath;
     private String minorPath;
     private String patchPath;
+    private boolean atomicCommit;
+    private int threads;
+    private boolean remoteOnly;
+    private boolean asynchronous;
+    private boolean unstableOnFailure;
+    private boolean coalesce;
+    private boolean sharedWorkingCopy;
+    private boolean skipUnchanged;
+    private boolean copyDuplicates;
+    private boolean recordFingerprints;
     private String workspace = "NA";
 
+    /**
+     * The file in each job's directory that remembers the digests of
+     * published files.
+     */
+    static final String DIGEST_CACHE = "svnpublisher-digests.txt";
+
+    /**
+     * The directory below the Jenkins root that holds shared working copies.
+     */
+    static final String WORKING_COPIES = "svnpublisher-workingcopies";
+
+    /**
+     * The file in the Jenkins root that remembers where contents can be
+     * copied from.
+     */
+    static final String CONTENT_INDEX = "svnpublisher-contents.txt";
+
     /**
      * {@stapler-constructor}
      */
@@ -55,7 +93,12 @@ public class SVNPublisher extends Notifier {
     public SVNPublisher(final String svnUrl, final String pomPath,
 	    final String target, final ArrayList<ImportItem> items,
 	    final String user, final String password, final String majorPath,
-	    final String minorPath, final String patchPath) {
+	    final String minorPath, final String patchPath,
+	    final boolean atomicCommit, final int threads,
+	    final boolean remoteOnly, final boolean asynchronous,
+	    final boolean unstableOnFailure, final boolean coalesce,
+	    final boolean sharedWorkingCopy, final boolean skipUnchanged,
+	    final boolean copyDuplicates, final boolean recordFingerprints) {
 	this.svnUrl = svnUrl;
 	this.pomPath = pomPath;
 	this.target = target;
@@ -65,6 +108,16 @@ public class SVNPublisher extends Notifier {
 	this.majorPath = majorPath;
 	this.minorPath = minorPath;
 	this.patchPath = patchPath;
+	this.atomicCommit = atomicCommit;
+	this.threads = threads;
+	this.remoteOnly = remoteOnly;
+	this.asynchronous = asynchronous;
+	this.unstableOnFailure = unstableOnFailure;
+	this.coalesce = coalesce;
+	this.sharedWorkingCopy = sharedWorkingCopy;
+	this.skipUnchanged = skipUnchanged;
+	this.copyDuplicates = copyDuplicates;
+	this.recordFingerprints = recordFingerprints;
     }
 
     public String getSvnUrl() {
@@ -107,6 +160,148 @@ public class SVNPublisher extends Notifier {
 	return patchPath;
     }
 
+    public boolean isAtomicCommit() {
+	return atomicCommit;
+    }
+
+    public int getThreads() {
+	return threads;
+    }
+
+    public boolean isRemoteOnly() {
+	return remoteOnly;
+    }
+
+    public boolean isAsynchronous() {
+	return asynchronous;
+    }
+
+    public boolean isUnstableOnFailure() {
+	return unstableOnFailure;
+    }
+
+    public boolean isCoalesce() {
+	return coalesce;
+    }
+
+    public boolean isSharedWorkingCopy() {
+	return sharedWorkingCopy;
+    }
+
+    public boolean isSkipUnchanged() {
+	return skipUnchanged;
+    }
+
+    public boolean isCopyDuplicates() {
+	return copyDuplicates;
+    }
+
+    public boolean isRecordFingerprints() {
+	return recordFingerprints;
+    }
+
+    /**
+     * @param build
+     *            The build being published.
+     * @return the optional behaviour configured for this publisher.
+     */
+    protected PublishOptions getOptions(final AbstractBuild<?, ?> build) {
+	PublishOptions options = new PublishOptions();
+	options.setDigestCache(new File(build.getProject().getRootDir(),
+		DIGEST_CACHE));
+	options.setAtomicCommit(atomicCommit);
+	options.setThreads(threads);
+	options.setRemoteOnly(remoteOnly);
+	options.setTreeHash(skipUnchanged);
+	if (copyDuplicates) {
+	    options.setContentIndex(DESCRIPTOR.getContentIndex());
+	}
+	if (sharedWorkingCopy) {
+	    options.setWorkingCopyCache(DESCRIPTOR.getWorkingCopyCache());
+	}
+	FilePath ws = build.getWorkspace();
+	if (null != ws && ws.isRemote()) {
+	    // matched and digested on the agent, only changes are transferred
+	    options.setRemoteWorkspace(ws);
+	}
+	if (recordFingerprints) {
+	    options.setFingerprints(new HashMap<String, String>());
+	    Fingerprinter.FingerprintAction fingerprints = build
+		    .getAction(Fingerprinter.FingerprintAction.class);
+	    if (null != ws && null != fingerprints) {
+		// artifacts fingerprinted by the build are not digested again,
+		// unless they were modified after the build fingerprinted them
+		Map<String, DigestCache.Known> known = new HashMap<String, DigestCache.Known>();
+		for (Map.Entry<String, Fingerprint> record : fingerprints
+			.getFingerprints().entrySet()) {
+		    Fingerprint fingerprint = record.getValue();
+		    // the build fingerprinted the file some time after it started;
+		    // only a fingerprint it created itself tells exactly when
+		    long taken = build.getTimeInMillis();
+		    Fingerprint.BuildPtr original = fingerprint.getOriginal();
+		    if (null != original && original.is(build)) {
+			taken = Math.max(taken, fingerprint.getTimestamp()
+				.getTime());
+		    }
+		    known.put(ws.child(record.getKey()).getRemote(),
+			    new DigestCache.Known(fingerprint.getHashString(),
+				    taken));
+		}
+		options.setKnownDigests(known);
+	    }
+	}
+	return options;
+    }
+
+    /**
+     * Record the fingerprints of the files a publish sent on the build,
+     * alongside any the build recorded itself.
+     * 
+     * @param build
+     *            The build being published.
+     * @param options
+     *            The options of the publish, holding the digests of the
+     *            files it sent.
+     */
+    private static void recordFingerprints(final AbstractBuild<?, ?> build,
+	    final PublishOptions options) {
+	Map<String, String> published = options.getFingerprints();
+	if (null == published || published.isEmpty()) {
+	    return;
+	}
+	FilePath ws = build.getWorkspace();
+	String prefix = null == ws ? null : ws.getRemote();
+	Map<String, String> records = new HashMap<String, String>();
+	Fingerprinter.FingerprintAction existing = build
+		.getAction(Fingerprinter.FingerprintAction.class);
+	if (null != existing) {
+	    records.putAll(existing.getRecords());
+	}
+	try {
+	    for (Map.Entry<String, String> file : published.entrySet()) {
+		String name = file.getKey();
+		if (null != prefix && name.length() > prefix.length() + 1
+			&& name.startsWith(prefix)
+			&& "/\\".indexOf(name.charAt(prefix.length())) >= 0) {
+		    // named relative to the workspace, as Fingerprinter does
+		    name = name.substring(prefix.length() + 1);
+		}
+		Fingerprint fingerprint = Hudson.getInstance()
+			.getFingerprintMap().getOrCreate(build, name,
+				file.getValue());
+		fingerprint.add(build);
+		records.put(name, file.getValue());
+	    }
+	} catch (IOException ioe) {
+	    LOGGER.log(Level.WARNING, "Unable to record fingerprints of "
+		    + build, ioe);
+	}
+	if (null != existing) {
+	    build.getActions().remove(existing);
+	}
+	build.addAction(new Fingerprinter.FingerprintAction(build, records));
+    }
+
     @Override
     public boolean perform(final AbstractBuild<?, ?> build,
 	    final Launcher launcher, final BuildListener listener) {
@@ -121,19 +316,172 @@ public class SVNPublisher extends Notifier {
 
 	    listener.getLogger().println(
 		    "Attempting to import to SVN: " + svnUrl);
+	    if (asynchronous) {
+		queuePublish(build, workspace, listener);
+		return true;
+	    }
+	    PublishAction action = new PublishAction(svnUrl);
+	    PublishOptions options = getOptions(build);
+	    options.setMetrics(action.getMetrics());
+	    build.addAction(action);
+	    PublishCoordinator.Ticket ticket = DESCRIPTOR.getCoordinator()
+		    .enter(svnUrl, build.getProject().getFullName());
+	    boolean published = false;
 	    try {
-		DESCRIPTOR.svnImport(svnUrl, target, items, user, password,
-			pomPath, majorPath, minorPath, patchPath, workspace,
-			listener.getLogger());
+		published = publish(ticket, workspace, listener.getLogger(),
+			options, action);
 	    } catch (Exception e) {
 		LOGGER.log(Level.SEVERE, "Unable to import to svn.", e);
+	    } finally {
+		DESCRIPTOR.getCoordinator().exit(ticket);
+	    }
+	    action.finished(published);
+	    if (published) {
+		recordFingerprints(build, options);
+	    }
+	    if (!published && unstableOnFailure) {
+		build.setResult(Result.UNSTABLE);
 	    }
 	}
 	return true;
     }
 
+    /**
+     * Hand the publish to the descriptor's queue, which runs it once the
+     * build has given its executor back, and record how it goes on the
+     * build.
+     * 
+     * @param build
+     *            The build being published.
+     * @param ws
+     *            The path of the build's workspace.
+     * @param listener
+     *            The build's listener, only used until the publish is
+     *            queued.
+     */
+    private void queuePublish(final AbstractBuild<?, ?> build,
+	    final String ws, final BuildListener listener) {
+	final PublishAction action = new PublishAction(svnUrl);
+	final PublishOptions options = getOptions(build);
+	options.setMetrics(action.getMetrics());
+	build.addAction(action);
+	try {
+	    // the next build may change the workspace before the publish is
+	    // done, so the files are digested now and the publish refuses any
+	    // that differ by then
+	    options.setSnapshot(SVNForceImport.snapshot(target, items, pomPath,
+		    majorPath, minorPath, patchPath, ws, listener.getLogger(),
+		    options));
+	} catch (Exception e) {
+	    LOGGER.log(Level.SEVERE, "Unable to read the files to publish.", e);
+	    listener.getLogger().println(
+		    "SVN Publisher: unable to read the files to publish: "
+			    + e.getMessage());
+	    action.finished(false);
+	    if (unstableOnFailure) {
+		build.setResult(Result.UNSTABLE);
+	    }
+	    return;
+	}
+	// queued publishes of older builds coalesce with this one
+	final PublishCoordinator.Ticket ticket = DESCRIPTOR.getCoordinator()
+		.enter(svnUrl, build.getProject().getFullName());
+	try {
+	    DESCRIPTOR.getQueue().submit(new Runnable() {
+		public void run() {
+		    boolean published = false;
+		    PrintStream log = null;
+		    try {
+			log = new PrintStream(new FileOutputStream(new File(
+				build.getRootDir(), PublishAction.LOG)), true,
+				"UTF-8");
+			published = publish(ticket, ws, log, options, action);
+		    } catch (Exception e) {
+			LOGGER.log(Level.SEVERE, "Unable to import to svn.", e);
+		    } finally {
+			DESCRIPTOR.getCoordinator().exit(ticket);
+			if (null != log) {
+			    log.close();
+			}
+		    }
+		    action.finished(published);
+		    if (published) {
+			recordFingerprints(build, options);
+		    }
+		    if (!published && unstableOnFailure) {
+			try {
+			    build.setResult(Result.UNSTABLE);
+			} catch (IllegalStateException ise) {
+			    LOGGER.warning("Unable to mark " + build
+				    + " unstable: " + ise.getMessage());
+			}
+		    }
+		    try {
+			build.save();
+		    } catch (IOException ioe) {
+			LOGGER.log(Level.WARNING, "Unable to record the publish of "
+				+ build, ioe);
+		    }
+		}
+	    });
+	    listener.getLogger().println(
+		    "SVN Publisher: queued, " + DESCRIPTOR.getQueue().getPending()
+			    + " publishes pending, logging to "
+			    + PublishAction.LOG);
+	} catch (InterruptedException ie) {
+	    DESCRIPTOR.getCoordinator().exit(ticket);
+	    action.finished(false);
+	    listener.getLogger().println(
+		    "SVN Publisher: interrupted while waiting for the queue");
+	}
+    }
+
+    /**
+     * Publish once no other publish to the same destination is running, or
+     * not at all when coalescing and a newer build of this job has arrived
+     * in the meantime.
+     * 
+     * @param ticket
+     *            The publish's ticket from the descriptor's coordinator.
+     * @param ws
+     *            The path of the build's workspace.
+     * @param stream
+     *            Where the publish logs to.
+     * @param options
+     *            The optional behaviour of the publish.
+     * @param action
+     *            The action recording the publish on the build.
+     * @return true if the publish succeeded or was superseded.
+     * @throws Exception
+     */
+    private boolean publish(final PublishCoordinator.Ticket ticket,
+	    final String ws, final PrintStream stream,
+	    final PublishOptions options, final PublishAction action)
+	    throws Exception {
+	PublishCoordinator coordinator = DESCRIPTOR.getCoordinator();
+	if (!coordinator.isIdle(ticket)) {
+	    stream.println("SVN Publisher: waiting for another publish to "
+		    + svnUrl);
+	}
+	if (!coordinator.acquire(ticket, coalesce)) {
+	    stream.println("SVN Publisher: skipped, a newer build publishes to "
+		    + svnUrl);
+	    action.superseded();
+	    return true;
+	}
+	action.started();
+	return DESCRIPTOR.svnImport(svnUrl, target, items, user, password,
+		pomPath, majorPath, minorPath, patchPath, ws, stream, options);
+    }
+
+    @Override
+    public Action getProjectAction(final AbstractProject<?, ?> project) {
+	return new PublishTrendAction(project);
+    }
+
     public BuildStepMonitor getRequiredMonitorService() {
-	return BuildStepMonitor.BUILD;
+	// an asynchronous publish does not wait for earlier builds' publishes
+	return asynchronous ? BuildStepMonitor.NONE : BuildStepMonitor.BUILD;
     }
 
     public static final class DescriptorImpl extends
@@ -154,6 +502,33 @@ public class SVNPublisher extends Notifier {
 	public String minorPath;
 	public String patchPath;
 
+	/**
+	 * Repository sessions kept open between publishes.
+	 */
+	private final transient SVNSessionPool sessions = new SVNSessionPool();
+
+	/**
+	 * Publishes of jobs that publish asynchronously.
+	 */
+	private final transient PublishQueue queue = new PublishQueue();
+
+	/**
+	 * Serializes publishes to the same destination.
+	 */
+	private final transient PublishCoordinator coordinator = new PublishCoordinator();
+
+	/**
+	 * Working copies shared by the jobs that ask for it, created when first
+	 * needed.
+	 */
+	private transient WorkingCopyCache workingCopyCache;
+
+	/**
+	 * Where contents already in repositories can be copied from, created
+	 * when first needed.
+	 */
+	private transient ContentIndex contentIndex;
+
 	protected DescriptorImpl() {
 	    super(SVNPublisher.class);
 	    load();
@@ -243,18 +618,64 @@ public class SVNPublisher extends Notifier {
 	    return instance;
 	}
 
-	public void svnImport(final String svnUrl, final String target,
+	public boolean svnImport(final String svnUrl, final String target,
 		final ArrayList<ImportItem> items, final String user,
 		final String password, final String pomPath,
 		final String majorPath, final String minorPath,
 		final String patchPath, final String workspace,
-		final PrintStream stream) throws Exception {
+		final PrintStream stream, final PublishOptions options)
+		throws Exception {
 
-	    SVNForceImport
+	    return SVNForceImport
 		    .forceImport(svnUrl, user, password, target, items,
 			    pomPath, majorPath, minorPath, patchPath,
-			    workspace, stream);
+			    workspace, stream, options, getSessions());
+
+	}
 
+	public SVNSessionPool getSessions() {
+	    return sessions;
+	}
+
+	public PublishQueue getQueue() {
+	    return queue;
+	}
+
+	public PublishCoordinator getCoordinator() {
+	    return coordinator;
+	}
+
+	public synchronized WorkingCopyCache getWorkingCopyCache() {
+	    if (null == workingCopyCache) {
+		workingCopyCache = new WorkingCopyCache(new File(Hudson
+			.getInstance().getRootDir(), WORKING_COPIES));
+	    }
+	    return workingCopyCache;
+	}
+
+	public synchronized ContentIndex getContentIndex() {
+	    if (null == contentIndex) {
+		contentIndex = new ContentIndex(new File(Hudson.getInstance()
+			.getRootDir(), CONTENT_INDEX));
+	    }
+	    return contentIndex;
+	}
+    }
+
+    /**
+     * Closes pooled repository sessions that have not been used for a while.
+     */
+    @Extension
+    public static class IdleSessionEviction extends PeriodicWork {
+
+	@Override
+	public long getRecurrencePeriod() {
+	    return MIN;
+	}
+
+	@Override
+	protected void doRun() {
+	    DESCRIPTOR.getSessions().evictIdle();
 	}
     }
 }
@@ -0,0 +1,265 @@
+package com.mtvi.plateng.subversion;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.auth.ISVNAuthenticationManager;
+import org.tmatesoft.svn.core.internal.io.dav.DAVRepositoryFactory;
+import org.tmatesoft.svn.core.internal.io.fs.FSRepositoryFactory;
+import org.tmatesoft.svn.core.internal.io.svn.SVNRepositoryFactoryImpl;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+import org.tmatesoft.svn.core.wc.SVNClientManager;
+import org.tmatesoft.svn.core.wc.SVNWCUtil;
+
+/**
+ * Keeps repository sessions, together with their authentication manager and
+ * client manager, open between publishes so that builds publishing to the
+ * same server reuse connections that have already been negotiated.
+ *
+ * Sessions are pooled by server and credentials; a leased session is moved to
+ * the requested location within the server. A session is used by one thread
+ * at a time: it is leased, used, and then released or discarded. Sessions that
+ * have been idle for a while are tested before being handed out again, and
+ * sessions idle for longer than the idle timeout are closed.
+ */
+public class SVNSessionPool {
+    private static final Logger LOGGER = Logger.getLogger(SVNSessionPool.class
+        .getName());
+
+    /**
+     * How long a session may stay idle before it is closed.
+     */
+    static final long IDLE_TIMEOUT = 5 * 60 * 1000L;
+
+    /**
+     * Sessions idle for longer than this are tested before being reused.
+     */
+    static final long CHECK_AFTER = 30 * 1000L;
+
+    /**
+     * The most idle sessions kept for one server and set of credentials.
+     */
+    static final int MAX_IDLE = 8;
+
+    static {
+        // http and https
+        DAVRepositoryFactory.setup();
+        // svn
+        SVNRepositoryFactoryImpl.setup();
+        // file
+        FSRepositoryFactory.setup();
+    }
+
+    /**
+     * A repository session and the managers that go with it.
+     */
+    public static class Session {
+        private final String key;
+        private final String user;
+        private final String password;
+        private final SVNRepository repository;
+        private final SVNClientManager clientManager;
+        private long lastUsed;
+
+        Session(final String key, final String user, final String password,
+            final SVNRepository repository, final SVNClientManager clientManager) {
+            this.key = key;
+            this.user = user;
+            this.password = password;
+            this.repository = repository;
+            this.clientManager = clientManager;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        public SVNRepository getRepository() {
+            return repository;
+        }
+
+        public SVNClientManager getClientManager() {
+            return clientManager;
+        }
+
+        public ISVNAuthenticationManager getAuthenticationManager() {
+            return repository.getAuthenticationManager();
+        }
+
+        void close() {
+            clientManager.dispose();
+            repository.closeSession();
+        }
+    }
+
+    private final Map<String, LinkedList<Session>> idle = new HashMap<String, LinkedList<Session>>();
+
+    /**
+     * Lease a session for the given location.
+     *
+     * @param url
+     *            The location the session is to be opened at.
+     * @param user
+     *            The username, null to use the default credentials.
+     * @param password
+     *            The password.
+     * @return a session at the location.
+     * @throws SVNException
+     */
+    public Session lease(final SVNURL url, final String user,
+        final String password) throws SVNException {
+        String key = keyOf(url, user, password);
+        Session session;
+        while (null != (session = takeIdle(key))) {
+            if (isHealthy(session)) {
+                session.repository.setLocation(url, false);
+                return session;
+            }
+            session.close();
+        }
+
+        SVNRepository repository = SVNRepositoryFactory.create(url);
+        ISVNAuthenticationManager authManager;
+        if (null != user) {
+            authManager = SVNWCUtil.createDefaultAuthenticationManager(user,
+                password);
+        } else {
+            authManager = SVNWCUtil.createDefaultAuthenticationManager();
+        }
+        repository.setAuthenticationManager(authManager);
+        return new Session(key, user, password, repository, SVNClientManager
+            .newInstance(null, authManager));
+    }
+
+    /**
+     * Lease another session at the same location and with the same
+     * credentials as the given one.
+     *
+     * @param like
+     *            The session to copy.
+     * @return a session at the same location.
+     * @throws SVNException
+     */
+    public Session lease(final Session like) throws SVNException {
+        return lease(like.repository.getLocation(), like.user, like.password);
+    }
+
+    /**
+     * Return a session that is no longer in use to the pool.
+     *
+     * @param session
+     *            The session.
+     */
+    public void release(final Session session) {
+        session.lastUsed = System.currentTimeMillis();
+        Session surplus = null;
+        synchronized (idle) {
+            LinkedList<Session> sessions = idle.get(session.key);
+            if (null == sessions) {
+                sessions = new LinkedList<Session>();
+                idle.put(session.key, sessions);
+            }
+            sessions.addFirst(session);
+            if (sessions.size() > MAX_IDLE) {
+                surplus = sessions.removeLast();
+            }
+        }
+        if (null != surplus) {
+            surplus.close();
+        }
+    }
+
+    /**
+     * Close a session that failed instead of returning it to the pool.
+     *
+     * @param session
+     *            The session.
+     */
+    public void discard(final Session session) {
+        session.close();
+    }
+
+    /**
+     * Close every session that has been idle for longer than the idle
+     * timeout.
+     */
+    public void evictIdle() {
+        long oldest = System.currentTimeMillis() - IDLE_TIMEOUT;
+        List<Session> expired = new ArrayList<Session>();
+        synchronized (idle) {
+            for (Iterator<LinkedList<Session>> i = idle.values().iterator(); i
+                .hasNext();) {
+                LinkedList<Session> sessions = i.next();
+                while (!sessions.isEmpty()
+                    && sessions.getLast().lastUsed < oldest) {
+                    expired.add(sessions.removeLast());
+                }
+                if (sessions.isEmpty()) {
+                    i.remove();
+                }
+            }
+        }
+        for (Session session : expired) {
+            session.close();
+        }
+        if (!expired.isEmpty()) {
+            LOGGER.fine("SVNSessionPool closed " + expired.size()
+                + " idle sessions");
+        }
+    }
+
+    /**
+     * Close every idle session.
+     */
+    public void close() {
+        List<Session> all = new ArrayList<Session>();
+        synchronized (idle) {
+            for (LinkedList<Session> sessions : idle.values()) {
+                all.addAll(sessions);
+            }
+            idle.clear();
+        }
+        for (Session session : all) {
+            session.close();
+        }
+    }
+
+    private Session takeIdle(final String key) {
+        synchronized (idle) {
+            LinkedList<Session> sessions = idle.get(key);
+            if (null == sessions || sessions.isEmpty()) {
+                return null;
+            }
+            return sessions.removeFirst();
+        }
+    }
+
+    private static boolean isHealthy(final Session session) {
+        if (System.currentTimeMillis() - session.lastUsed < CHECK_AFTER) {
+            return true;
+        }
+        try {
+            session.repository.testConnection();
+            return true;
+        } catch (SVNException svne) {
+            LOGGER.fine("SVNSessionPool dropping stale session: "
+                + svne.getMessage());
+            return false;
+        }
+    }
+
+    private static String keyOf(final SVNURL url, final String user,
+        final String password) {
+        // every local repository shares the same empty host
+        String server = "file".equals(url.getProtocol()) ? url.getPath() : url
+            .getHost()
+            + ":" + url.getPort();
+        return url.getProtocol() + "://" + server + "\n" + user + "\n"
+            + password;
+    }
+}
@@ -1,21 +1,53 @@
 package com.mtvi.plateng.subversion;
 
 import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * A Simple class to parse out the key values in a pom.xml file and make them easily available.
  * 
+ * The pom is read as a stream and reading stops as soon as every requested value has been found.
+ * Results are cached by file, size, modification time and paths, so jobs sharing a pom only read it
+ * once until it changes.
+ * 
  * @author bsmith
  *
  */
 public class SimplePOMParser {
+	private static final Logger LOGGER = Logger.getLogger(SimplePOMParser.class.getName());
+	
+	private static final int CACHE_SIZE = 64;
+	
+	private static final SAXParserFactory FACTORY = SAXParserFactory.newInstance();
+	
+	static {
+		try {
+			FACTORY.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+		} catch (Exception e) {
+			// not supported by this parser, DTDs will be loaded
+		}
+	}
+	
+	/**
+	 * Parsed values by file, size, modification time and paths.
+	 */
+	private static final Map<String, int[]> CACHE = new LinkedHashMap<String, int[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
 
 	private String majorPath;
 	
@@ -38,11 +70,6 @@ public class SimplePOMParser {
 	 */
 	private int patch;
 	
-	/**
-	 * The Document used in parsing the pom.xml
-	 */
-	private Document doc;
-	
 	
 	public SimplePOMParser(){
 		
@@ -56,81 +83,219 @@ public class SimplePOMParser {
 	 */
 	public void parse(File pom){
 		
-		try{
-			
-			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-			DocumentBuilder db = dbf.newDocumentBuilder();
-			doc = db.parse(pom);
-			Element root = doc.getDocumentElement();
-			
-			if (null != majorPath){
-				major = getValue(root, majorPath);
+		String key = pom.getAbsolutePath() + "\n" + pom.length() + "\n" + pom.lastModified()
+			+ "\n" + majorPath + "\n" + minorPath + "\n" + patchPath;
+		int[] values;
+		synchronized (CACHE) {
+			values = CACHE.get(key);
+		}
+		
+		if (null == values){
+			try{
+				
+				ValueHandler handler = new ValueHandler(new ValuePath[]{
+						ValuePath.compile(majorPath), ValuePath.compile(minorPath), ValuePath.compile(patchPath)});
+				try{
+					SAXParser parser;
+					synchronized (FACTORY) {
+						parser = FACTORY.newSAXParser();
+					}
+					parser.parse(pom, handler);
+				}catch (AllFound af){
+					// every value has been read, the rest of the pom is not needed
+				}
+				values = new int[3];
+				for (int i = 0; i < values.length; i++){
+					values[i] = handler.getValue(i);
+				}
+				synchronized (CACHE) {
+					CACHE.put(key, values);
+				}
+						
+			}catch (Exception e){
+				System.err.println("Exception encountered while parsing file: " + e.getMessage());
+				return;
 			}
-			if (null != minorPath){
-				minor = getValue(root, minorPath);
+		}
+		
+		if (null != majorPath){
+			major = values[0];
+		}
+		if (null != minorPath){
+			minor = values[1];
+		}
+		if (null != patchPath){
+			patch = values[2];
+		}
+		
+	}
+	
+	/**
+	 * A compiled path such as project.version[1], naming a chain of elements
+	 * from the root and optionally which "." separated part of the text to use.
+	 */
+	private static class ValuePath {
+		private final String path;
+		private final String[] elements;
+		private final int part;
+		
+		private ValuePath(String path, String[] elements, int part){
+			this.path = path;
+			this.elements = elements;
+			this.part = part;
+		}
+		
+		static ValuePath compile(String path){
+			if (null == path){
+				return null;
 			}
-			if (null != patchPath){
-				patch = getValue(root, patchPath);
+			String[] elements = path.split("\\.");
+			int part = -1;
+			String last = elements[elements.length - 1];
+			if (last.contains("[")){
+				// this could be prettied up a lot
+				String[] nodeSplit = last.split("[\\[|\\]]");
+				part = Integer.parseInt(nodeSplit[1]);
+				elements[elements.length - 1] = nodeSplit[0];
 			}
-			
-						
-		}catch (Exception e){
-			System.err.println("Exception encountered while parsing file: " + e.getMessage());
+			return new ValuePath(path, elements, part);
 		}
 		
+		int valueOf(String text){
+			try{
+				if (part < 0){
+					return Integer.parseInt(text);
+				}
+				return Integer.parseInt(text.split("\\.")[part]);
+			}catch (Exception e){
+				LOGGER.warning("SimplePOMParser: no number at " + path + " in '" + text + "'");
+				return -1;
+			}
+		}
 	}
 	
-	private int getValue(Element root, String path){
-		try{
-			String[] pathElements = path.split("\\.");
-			String nodeName;
-			int valueSplit = -1;
-			int value;
-			Element node = root;
-			
-			for (int i = 0; i < pathElements.length -1; i++){
-				
-				NodeList nl = node.getChildNodes();
-				for (int j = 0; j < nl.getLength(); j++){
-					if (nl.item(j).getNodeName().equalsIgnoreCase(pathElements[i])){
-						node = (Element) nl.item(j);
-						j = nl.getLength();
-					}
+	/**
+	 * Signals that every requested value has been read.
+	 */
+	private static class AllFound extends SAXException {
+		private static final long serialVersionUID = 1L;
+		
+		AllFound(){
+			super("all values found");
+		}
+	}
+	
+	/**
+	 * Follows every path through the stream of elements. A leading path
+	 * element naming the root element is passed over, and only the first
+	 * child with a matching name is followed, as a DOM walk would.
+	 */
+	private static class ValueHandler extends DefaultHandler {
+		private final ValuePath[] paths;
+		/**
+		 * How many elements of each path have been matched.
+		 */
+		private final int[] matched;
+		/**
+		 * The depth of the element each path last matched.
+		 */
+		private final int[] matchedDepth;
+		/**
+		 * Whether each path has been resolved, or can no longer be.
+		 */
+		private final boolean[] finished;
+		private final int[] values;
+		private final StringBuilder[] text;
+		private int remaining;
+		private int depth;
+		
+		ValueHandler(ValuePath[] paths){
+			this.paths = paths;
+			this.matched = new int[paths.length];
+			this.matchedDepth = new int[paths.length];
+			this.finished = new boolean[paths.length];
+			this.values = new int[paths.length];
+			this.text = new StringBuilder[paths.length];
+			for (int i = 0; i < paths.length; i++){
+				values[i] = -1;
+				matchedDepth[i] = 1;
+				if (null == paths[i]){
+					finished[i] = true;
+				}else{
+					remaining++;
 				}
-				
 			}
-			
-			nodeName = pathElements[pathElements.length-1];
-			if (nodeName.contains("[")){
-				
-				// this could be prettied up a lot
-				String[] nodeSplit = nodeName.split("[\\[|\\]]");
-				valueSplit = Integer.parseInt(nodeSplit[1]);
-				nodeName = nodeSplit[0];
-				
-				NodeList nl = node.getChildNodes();
-				for (int i = 0; i < nl.getLength(); i++){
-					if (nl.item(i).getNodeName().equalsIgnoreCase(nodeName)){
-						node = (Element) nl.item(i);
-						i = nl.getLength();
-					}
+		}
+		
+		int getValue(int i){
+			return values[i];
+		}
+		
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes)
+				throws SAXException {
+			depth++;
+			for (int i = 0; i < paths.length; i++){
+				if (finished[i]){
+					continue;
 				}
-				
-				value = Integer.parseInt(node.getFirstChild().getNodeValue().split("\\.")[valueSplit]);
-			}else{
-				NodeList nl = node.getChildNodes();
-				for (int i = 0; i < nl.getLength(); i++){
-					if (nl.item(i).getNodeName().equalsIgnoreCase(nodeName)){
-						node = (Element) nl.item(i);
-						i = nl.getLength();
+				String[] elements = paths[i].elements;
+				if (depth == 1){
+					if (elements.length > 1 && elements[0].equalsIgnoreCase(qName)){
+						matched[i] = 1;
+					}
+				}else if (null != text[i]){
+					// the value is the text before the first child element
+					finish(i);
+				}else if (depth == matchedDepth[i] + 1 && elements[matched[i]].equalsIgnoreCase(qName)){
+					matched[i]++;
+					matchedDepth[i] = depth;
+					if (matched[i] == elements.length){
+						text[i] = new StringBuilder();
 					}
 				}
-				value = Integer.parseInt(node.getFirstChild().getNodeValue());
 			}
-
-			return value;
-		}catch (Exception e){
-			return -1;	
+			checkDone();
+		}
+		
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			for (int i = 0; i < paths.length; i++){
+				if (!finished[i] && null != text[i]){
+					text[i].append(ch, start, length);
+				}
+			}
+		}
+		
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			for (int i = 0; i < paths.length; i++){
+				if (finished[i]){
+					continue;
+				}
+				if (null != text[i]){
+					finish(i);
+				}else if (depth == matchedDepth[i]){
+					// the first matching element ended without holding the value
+					finished[i] = true;
+					remaining--;
+				}
+			}
+			depth--;
+			checkDone();
+		}
+		
+		private void finish(int i){
+			values[i] = paths[i].valueOf(text[i].toString());
+			text[i] = null;
+			finished[i] = true;
+			remaining--;
+		}
+		
+		private void checkDone() throws AllFound {
+			if (remaining == 0){
+				throw new AllFound();
+			}
 		}
 	}
 	
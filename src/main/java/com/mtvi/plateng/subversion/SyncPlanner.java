@@ -0,0 +1,152 @@
+package com.mtvi.plateng.subversion;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.tmatesoft.svn.core.SVNDepth;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.wc.ISVNStatusHandler;
+import org.tmatesoft.svn.core.wc.SVNRevision;
+import org.tmatesoft.svn.core.wc.SVNStatus;
+import org.tmatesoft.svn.core.wc.SVNStatusClient;
+import org.tmatesoft.svn.core.wc.SVNStatusType;
+
+/**
+ * Decides what of an existing working copy has to be updated before changed
+ * files are staged in it.
+ *
+ * The revisions in which the destination and its files last changed come from
+ * the RemoteIndex listings the publish fetches anyway, and the revisions the
+ * working copy holds from one local status walk of the working copy
+ * directory. A working copy whose directory and files are at least as recent
+ * as the destination is not updated at all, and only the files that moved
+ * since the working copy got them are updated otherwise.
+ */
+public class SyncPlanner {
+
+    /**
+     * What has to be updated in one working copy.
+     */
+    public static class Sync {
+        private final boolean directoryBehind;
+        private final List<File> files;
+        private final long revision;
+
+        Sync(final boolean directoryBehind, final List<File> files,
+            final long revision) {
+            this.directoryBehind = directoryBehind;
+            this.files = files;
+            this.revision = revision;
+        }
+
+        /**
+         * @return true if the destination changed since the working copy
+         *         directory was last updated.
+         */
+        public boolean isDirectoryBehind() {
+            return directoryBehind;
+        }
+
+        /**
+         * @return the files that have to be updated.
+         */
+        public List<File> getFiles() {
+            return files;
+        }
+
+        /**
+         * @return the revision in which the destination last changed, -1 if
+         *         unknown.
+         */
+        public long getRevision() {
+            return revision;
+        }
+    }
+
+    private final RemoteIndex index;
+
+    private final SVNStatusClient statusClient;
+
+    /**
+     * @param index
+     *            The index of the repository the working copies were checked
+     *            out from.
+     * @param statusClient
+     *            The client used to read the working copies' revisions.
+     */
+    public SyncPlanner(final RemoteIndex index,
+        final SVNStatusClient statusClient) {
+        this.index = index;
+        this.statusClient = statusClient;
+    }
+
+    /**
+     * @param svnTempDir
+     *            The working copy of the destination.
+     * @param path
+     *            The path of the destination in the repository.
+     * @param svnFiles
+     *            The working copy files changed files would be staged in.
+     * @return what has to be updated.
+     * @throws SVNException
+     */
+    public Sync plan(final File svnTempDir, final String path,
+        final List<File> svnFiles) throws SVNException {
+        Map<File, Long> revisions = readRevisions(svnTempDir);
+
+        RemoteIndex.Entry destination = index.getEntry(path);
+        long revision = null == destination ? -1 : destination.getRevision();
+        boolean directoryBehind = isBehind(revisions.get(svnTempDir
+            .getAbsoluteFile()), revision);
+
+        List<File> files = new ArrayList<File>();
+        for (File svnFile : svnFiles) {
+            RemoteIndex.Entry entry = index.getEntry(path + "/"
+                + svnFile.getName());
+            Long local = revisions.get(svnFile.getAbsoluteFile());
+            if (null == entry) {
+                // deleted in the repository, the update removes it
+                if (null != local) {
+                    files.add(svnFile);
+                }
+            } else if (isBehind(local, entry.getRevision())) {
+                files.add(svnFile);
+            }
+        }
+        return new Sync(directoryBehind, files, revision);
+    }
+
+    private static boolean isBehind(final Long local, final long remote) {
+        return null == local || remote < 0 || local.longValue() < remote;
+    }
+
+    /**
+     * @return the revision of every versioned entry of the working copy
+     *         directory and the directory itself, read without contacting the
+     *         repository.
+     */
+    private Map<File, Long> readRevisions(final File svnTempDir)
+        throws SVNException {
+        final Map<File, Long> revisions = new HashMap<File, Long>();
+        statusClient.doStatus(svnTempDir, SVNRevision.WORKING,
+            SVNDepth.IMMEDIATES, false, true, false, false,
+            new ISVNStatusHandler() {
+                public void handleStatus(final SVNStatus status) {
+                    SVNStatusType type = status.getContentsStatus();
+                    if (type == SVNStatusType.STATUS_UNVERSIONED
+                        || type == SVNStatusType.STATUS_ADDED
+                        || type == SVNStatusType.STATUS_NONE
+                        || null == status.getRevision()
+                        || !status.getRevision().isValid()) {
+                        return;
+                    }
+                    revisions.put(status.getFile().getAbsoluteFile(), status
+                        .getRevision().getNumber());
+                }
+            }, null);
+        return revisions;
+    }
+}
@@ -0,0 +1,196 @@
+package com.mtvi.plateng.subversion;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNProperties;
+import org.tmatesoft.svn.core.SVNProperty;
+import org.tmatesoft.svn.core.io.ISVNDirEntryHandler;
+import org.tmatesoft.svn.core.io.SVNRepository;
+
+/**
+ * Digests everything a publish puts in each destination into a single value,
+ * which is kept in a property of the destination directory. When the files
+ * matched for a destination digest to the value it kept from the last
+ * publish, the destination is left alone: deciding that costs one property
+ * fetch instead of a checkout or update, listings and comparisons.
+ *
+ * The value of a destination is the MD5 of the sorted names and MD5 digests
+ * of its files. The property keeps it next to the revision of the commit
+ * recording it, and the value only counts while that commit is still the last
+ * to change the destination: a destination changed by any other commit since
+ * is published again. The revision is recorded before the commit is made, as
+ * the one after the latest; when another commit lands first, the property
+ * names a revision the destination never had and the next publish is not
+ * skipped.
+ *
+ * Paths are relative to the location the SVNRepository was created for.
+ */
+public class TreeHash {
+
+    /**
+     * The property of the destination directory holding its value.
+     */
+    public static final String PROPERTY = "svnpublisher:treehash";
+
+    /**
+     * File digests by name, by destination path. A null map marks a
+     * destination whose value can not be trusted.
+     */
+    private final Map<String, Map<String, String>> destinations = new TreeMap<String, Map<String, String>>();
+
+    /**
+     * Add a file to a destination.
+     *
+     * @param path
+     *            The path of the destination.
+     * @param name
+     *            The name of the file in the destination.
+     * @param digest
+     *            The MD5 digest of the file's contents, null if it could not
+     *            be read.
+     */
+    public void add(final String path, final String name, final String digest) {
+        String key = normalize(path);
+        if (!destinations.containsKey(key)) {
+            destinations.put(key, new TreeMap<String, String>());
+        }
+        Map<String, String> files = destinations.get(key);
+        if (null == digest) {
+            invalidate(key);
+        } else if (null != files) {
+            // a later item publishing the same name replaces the file
+            files.put(name, digest);
+        }
+    }
+
+    /**
+     * Keep a destination from being skipped or recorded, because not all of
+     * its files are known to be in the repository.
+     *
+     * @param path
+     *            The path of the destination.
+     */
+    public void invalidate(final String path) {
+        destinations.put(normalize(path), null);
+    }
+
+    /**
+     * @param path
+     *            The path of the destination.
+     * @return the value of the destination, null if it has no files or can
+     *         not be trusted.
+     */
+    public String get(final String path) {
+        Map<String, String> files = destinations.get(normalize(path));
+        if (null == files || files.isEmpty()) {
+            return null;
+        }
+        MessageDigest md = ContentDigest.newDigest(ContentDigest.MD5);
+        try {
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                md.update(file.getKey().getBytes("UTF-8"));
+                md.update((byte) 0);
+                md.update(file.getValue().getBytes("UTF-8"));
+                md.update((byte) '\n');
+            }
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+        return ContentDigest.toHex(md.digest());
+    }
+
+    /**
+     * @return the paths of every destination.
+     */
+    public Set<String> getPaths() {
+        return destinations.keySet();
+    }
+
+    /**
+     * Fetch the value kept by every destination, and the revision the
+     * destination last changed in, in one round trip per destination.
+     *
+     * @param repository
+     *            The repository holding the destinations.
+     * @return the paths of the destinations whose value is unchanged and
+     *         which have not changed since it was recorded.
+     */
+    public Set<String> findUnchanged(final SVNRepository repository) {
+        Set<String> unchanged = new HashSet<String>();
+        for (String path : destinations.keySet()) {
+            String value = get(path);
+            if (null != value && value.equals(fetch(repository, path))) {
+                unchanged.add(path);
+            }
+        }
+        return unchanged;
+    }
+
+    /**
+     * Record the value of every destination that is not unchanged in the
+     * commit.
+     *
+     * @param plan
+     *            The commit the values are sent in.
+     * @param unchanged
+     *            The destinations found unchanged.
+     * @param revision
+     *            The revision the commit is expected to create, the one
+     *            after the latest.
+     */
+    public void record(final CommitPlan plan, final Set<String> unchanged,
+        final long revision) {
+        for (String path : destinations.keySet()) {
+            String value = get(path);
+            if (null != value && !unchanged.contains(path)) {
+                plan.setDirProperty(path, PROPERTY, value + " " + revision);
+            }
+        }
+    }
+
+    /**
+     * @return the value kept by a destination, null if it keeps none, does
+     *         not exist or last changed in a revision other than the one kept
+     *         next to the value.
+     */
+    private static String fetch(final SVNRepository repository,
+        final String path) {
+        SVNProperties props = new SVNProperties();
+        try {
+            repository.getDir(path, -1, props, (ISVNDirEntryHandler) null);
+        } catch (SVNException svne) {
+            return null;
+        }
+        String kept = props.getStringValue(PROPERTY);
+        String changed = props.getStringValue(SVNProperty.COMMITTED_REVISION);
+        if (null == kept || null == changed
+            || !kept.endsWith(" " + changed)) {
+            return null;
+        }
+        return kept.substring(0, kept.length() - changed.length() - 1);
+    }
+
+    /**
+     * The keys ignore leading, trailing and repeated slashes, so that the
+     * same destination written differently by two items is one destination.
+     */
+    static String normalize(final String path) {
+        StringBuilder normalized = new StringBuilder();
+        for (String segment : path.split("/")) {
+            if (segment.length() == 0) {
+                continue;
+            }
+            if (normalized.length() > 0) {
+                normalized.append('/');
+            }
+            normalized.append(segment);
+        }
+        return normalized.toString();
+    }
+}
@@ -0,0 +1,344 @@
+package com.mtvi.plateng.subversion;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the working copies of publish destinations in one directory shared by
+ * every job, so a wiped workspace does not mean checking the destination out
+ * again and jobs publishing to the same destination share one working copy.
+ *
+ * Entries are keyed by the URL of the destination. A publish leases the entry
+ * for as long as it runs: within this JVM through a lock per entry, and
+ * between processes sharing the directory through a lock on the entry's lock
+ * file. A publish that does not finish leaves its entry marked dirty, and the
+ * next lease of the entry is told to revert it first. A publish leases each
+ * entry once, and leases several entries in a consistent order.
+ *
+ * Once a publish has given back all of its leases, the least recently used
+ * entries no one holds are deleted until the entries fit the disk budget. The budget can be
+ * changed, in megabytes, with the system property
+ * com.mtvi.plateng.subversion.WorkingCopyCache.budget.
+ */
+public class WorkingCopyCache {
+    private static final Logger LOGGER = Logger
+        .getLogger(WorkingCopyCache.class.getName());
+
+    /**
+     * The number of bytes the entries may take.
+     */
+    static final long BUDGET = Long.getLong(WorkingCopyCache.class.getName()
+        + ".budget", 2048L) * 1024 * 1024;
+
+    private static final String LOCK = "lock";
+    private static final String DIRTY = "dirty";
+    private static final String SIZE = "size";
+    private static final String WORKING_COPY = "wc";
+
+    private final File root;
+
+    private final long budget;
+
+    private final Map<String, ReentrantLock> locks = new HashMap<String, ReentrantLock>();
+
+    /**
+     * @param root
+     *            The directory the entries are kept in.
+     */
+    public WorkingCopyCache(final File root) {
+        this(root, BUDGET);
+    }
+
+    /**
+     * @param root
+     *            The directory the entries are kept in.
+     * @param budget
+     *            The number of bytes the entries may take.
+     */
+    public WorkingCopyCache(final File root, final long budget) {
+        this.root = root;
+        this.budget = budget;
+    }
+
+    /**
+     * Lease the working copy of a destination, waiting for whoever holds it.
+     * The working copy directory does not exist if the destination has not
+     * been checked out yet.
+     *
+     * @param url
+     *            The URL of the destination.
+     * @return the lease, which has to be released.
+     * @throws IOException
+     */
+    public Lease lease(final String url) throws IOException {
+        String name = ContentDigest.toHex(ContentDigest.newDigest(
+            ContentDigest.MD5).digest(url.getBytes("UTF-8")));
+        File entry = new File(root, name);
+        ReentrantLock lock = getLock(name);
+        if (lock.isHeldByCurrentThread()) {
+            // the file lock can not be taken twice by one process
+            throw new IOException(entry + " is already leased by this thread");
+        }
+        lock.lock();
+        RandomAccessFile file = null;
+        try {
+            if (!entry.isDirectory() && !entry.mkdirs()) {
+                throw new IOException("Unable to create " + entry);
+            }
+            file = new RandomAccessFile(new File(entry, LOCK), "rw");
+            FileLock fileLock = file.getChannel().lock();
+            File dirty = new File(entry, DIRTY);
+            Lease lease = new Lease(entry, lock, file, fileLock, dirty
+                .exists());
+            // cleared again when the publish finishes
+            new FileOutputStream(dirty).close();
+            return lease;
+        } catch (IOException ioe) {
+            if (null != file) {
+                file.close();
+            }
+            lock.unlock();
+            throw ioe;
+        } catch (RuntimeException re) {
+            if (null != file) {
+                file.close();
+            }
+            lock.unlock();
+            throw re;
+        }
+    }
+
+    private synchronized ReentrantLock getLock(final String name) {
+        ReentrantLock lock = locks.get(name);
+        if (null == lock) {
+            lock = new ReentrantLock();
+            locks.put(name, lock);
+        }
+        return lock;
+    }
+
+    /**
+     * Delete the working copies of the least recently used entries no one
+     * holds until the rest fit the budget. The lock file of an entry is kept,
+     * so that a process waiting for it locks the file the next holder will.
+     * Called by a publish once it has released all of its leases.
+     */
+    public synchronized void evict() {
+        File[] entries = root.listFiles();
+        if (null == entries) {
+            return;
+        }
+        final Map<File, Long> used = new HashMap<File, Long>();
+        List<File> sorted = new ArrayList<File>();
+        long total = 0;
+        for (File entry : entries) {
+            if (entry.isDirectory()) {
+                used.put(entry, entry.lastModified());
+                sorted.add(entry);
+                total += readSize(entry);
+            }
+        }
+        if (total <= budget) {
+            return;
+        }
+        Collections.sort(sorted, new Comparator<File>() {
+            public int compare(final File f1, final File f2) {
+                return used.get(f1).compareTo(used.get(f2));
+            }
+        });
+        for (File entry : sorted) {
+            if (total <= budget) {
+                break;
+            }
+            long size = readSize(entry);
+            if (size > 0 && evict(entry)) {
+                total -= size;
+            }
+        }
+    }
+
+    /**
+     * @return true if the working copy of the entry has been deleted, false
+     *         if someone holds it.
+     */
+    private boolean evict(final File entry) {
+        ReentrantLock lock = getLock(entry.getName());
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            if (lock.getHoldCount() > 1) {
+                // leased by the thread evicting
+                return false;
+            }
+            RandomAccessFile file = new RandomAccessFile(
+                new File(entry, LOCK), "rw");
+            try {
+                FileLock fileLock;
+                try {
+                    fileLock = file.getChannel().tryLock();
+                } catch (OverlappingFileLockException ofle) {
+                    // held through another channel of this process
+                    return false;
+                }
+                if (null == fileLock) {
+                    return false;
+                }
+                try {
+                    delete(new File(entry, WORKING_COPY));
+                    new File(entry, DIRTY).delete();
+                    new File(entry, SIZE).delete();
+                    LOGGER.info("SVN Publisher: evicted working copy "
+                        + entry);
+                    return true;
+                } finally {
+                    fileLock.release();
+                }
+            } finally {
+                file.close();
+            }
+        } catch (IOException ioe) {
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the size of the entry's working copy when it was last released.
+     */
+    private static long readSize(final File entry) {
+        File file = new File(entry, SIZE);
+        if (!file.isFile()) {
+            return 0;
+        }
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[32];
+                int length = in.read(buffer);
+                return length > 0 ? Long.parseLong(new String(buffer, 0,
+                    length, "US-ASCII").trim()) : 0;
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            return 0;
+        } catch (NumberFormatException nfe) {
+            return 0;
+        }
+    }
+
+    private static void writeSize(final File entry, final long size)
+        throws IOException {
+        OutputStream out = new FileOutputStream(new File(entry, SIZE));
+        try {
+            out.write(Long.toString(size).getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static long sizeOf(final File file) {
+        File[] children = file.listFiles();
+        if (null == children) {
+            return file.length();
+        }
+        long total = 0;
+        for (File child : children) {
+            total += sizeOf(child);
+        }
+        return total;
+    }
+
+    private static void delete(final File file) {
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * The hold of one publish on one entry.
+     */
+    public final class Lease {
+        private final File entry;
+        private final ReentrantLock lock;
+        private final RandomAccessFile file;
+        private final FileLock fileLock;
+        private final boolean dirty;
+
+        Lease(final File entry, final ReentrantLock lock,
+            final RandomAccessFile file, final FileLock fileLock,
+            final boolean dirty) {
+            this.entry = entry;
+            this.lock = lock;
+            this.file = file;
+            this.fileLock = fileLock;
+            this.dirty = dirty;
+        }
+
+        /**
+         * @return the working copy directory.
+         */
+        public File getDirectory() {
+            return new File(entry, WORKING_COPY);
+        }
+
+        /**
+         * @return true if the last publish to hold the entry did not finish,
+         *         so the working copy may hold its uncommitted changes.
+         */
+        public boolean isDirty() {
+            return dirty;
+        }
+
+        /**
+         * Give the entry back. Entries over the budget are evicted by
+         * evict(), once every lease of the publish has been released.
+         *
+         * @param finished
+         *            true if the publish finished, leaving nothing
+         *            uncommitted in the working copy.
+         */
+        public void release(final boolean finished) {
+            try {
+                if (finished) {
+                    new File(entry, DIRTY).delete();
+                }
+                writeSize(entry, sizeOf(getDirectory()));
+                entry.setLastModified(System.currentTimeMillis());
+            } catch (IOException ioe) {
+                LOGGER.warning("SVN Publisher: unable to record the size of "
+                    + entry + ": " + ioe.getMessage());
+            } finally {
+                try {
+                    fileLock.release();
+                    file.close();
+                } catch (IOException ioe) {
+                    LOGGER.warning("SVN Publisher: unable to unlock " + entry
+                        + ": " + ioe.getMessage());
+                }
+                lock.unlock();
+            }
+        }
+    }
+}
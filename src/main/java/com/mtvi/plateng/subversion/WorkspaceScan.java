@@ -0,0 +1,262 @@
+package com.mtvi.plateng.subversion;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves the ImportItems of a publish and finds and digests the files they
+ * match on the machine holding the workspace, usually a build agent, so that
+ * the controller can plan the publish without reading the workspace itself.
+ *
+ * Matched folders are walked, so that the files below them are published the
+ * way doImport publishes a folder. Only the names, sizes and digests of
+ * matched files cross the channel. The
+ * contents of the files that turn out to need publishing are streamed later,
+ * one file at a time; unchanged files are never transferred.
+ *
+ * Digests are remembered between publishes in a DigestCache kept in the
+ * svntemp directory of the target directory, and files whose MD5 the
+ * controller already knows from the build's fingerprints are not read.
+ */
+public class WorkspaceScan implements FilePath.FileCallable<WorkspaceScan.Result> {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The file in the svntemp directory that remembers digests.
+     */
+    static final String DIGEST_CACHE = "svnpublisher-digests.txt";
+
+    /**
+     * A file matched by an ImportItem.
+     */
+    public static class MatchedFile implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String file;
+        private final String name;
+        private final long size;
+        private final String digest;
+
+        MatchedFile(final String file, final String name, final long size,
+            final String digest) {
+            this.file = file;
+            this.name = name;
+            this.size = size;
+            this.digest = digest;
+        }
+
+        /**
+         * @return the absolute path of the file on the machine holding the
+         *         workspace.
+         */
+        public String getFile() {
+            return file;
+        }
+
+        /**
+         * @return the name the file is given in the repository.
+         */
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the MD5 digest of the file's contents.
+         */
+        public String getDigest() {
+            return digest;
+        }
+    }
+
+    /**
+     * An ImportItem with its variables replaced and the files it matched.
+     */
+    public static class Item implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+        private final List<MatchedFile> files = new ArrayList<MatchedFile>();
+        private final List<String> folders = new ArrayList<String>();
+
+        Item(final String path) {
+            this.path = path;
+        }
+
+        /**
+         * @return the resolved path of the item within the project.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public List<MatchedFile> getFiles() {
+            return files;
+        }
+
+        /**
+         * @return the names in the repository of the matched folders and the
+         *         folders below them, with "/" as separator, every folder
+         *         before what it holds.
+         */
+        public List<String> getFolders() {
+            return folders;
+        }
+    }
+
+    /**
+     * Every item of the publish, in order, and the problems met finding
+     * their files.
+     */
+    public static class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Item> items = new ArrayList<Item>();
+        private final List<String> errors = new ArrayList<String>();
+        private long bytesHashed;
+
+        public List<Item> getItems() {
+            return items;
+        }
+
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return the number of bytes read to digest files.
+         */
+        public long getBytesHashed() {
+            return bytesHashed;
+        }
+    }
+
+    private final ArrayList<ImportItem> items;
+    private final String pomPath;
+    private final String majorPath;
+    private final String minorPath;
+    private final String patchPath;
+    private final HashMap<String, DigestCache.Known> knownDigests;
+    /**
+     * When the scan was created, on the clock the known digests' times are
+     * on.
+     */
+    private final long created = System.currentTimeMillis();
+
+    /**
+     * @param items
+     *            The ImportItems to be resolved.
+     * @param pomPath
+     *            The path to the project's pom.xml file on the machine
+     *            holding the workspace, may be null.
+     * @param majorPath
+     *            The xml path to the major version in the pom file.
+     * @param minorPath
+     *            The xml path to the minor version in the pom file.
+     * @param patchPath
+     *            The xml path to the patch version in the pom file.
+     * @param knownDigests
+     *            The MD5 digests already known for files on the machine
+     *            holding the workspace, by absolute path, may be null.
+     */
+    public WorkspaceScan(final ArrayList<ImportItem> items,
+        final String pomPath, final String majorPath, final String minorPath,
+        final String patchPath,
+        final Map<String, DigestCache.Known> knownDigests) {
+        this.items = items;
+        this.pomPath = pomPath;
+        this.majorPath = majorPath;
+        this.minorPath = minorPath;
+        this.patchPath = patchPath;
+        this.knownDigests = null == knownDigests ? null
+            : new HashMap<String, DigestCache.Known>(knownDigests);
+    }
+
+    /**
+     * @param targetDir
+     *            The local target directory, where items are found.
+     */
+    public Result invoke(final File targetDir, final VirtualChannel channel)
+        throws IOException {
+        Result result = new Result();
+        if (!targetDir.canRead()) {
+            result.errors.add("target Directory not accessable: " + targetDir);
+        }
+
+        SimplePOMParser spp = new SimplePOMParser();
+        if (null != pomPath) {
+            File pom = new File(pomPath);
+            if (!pom.canRead()) {
+                result.errors.add("pom File not accessable: " + pomPath);
+            }
+            spp.setMajorPath(majorPath);
+            spp.setMinorPath(minorPath);
+            spp.setPatchPath(patchPath);
+            spp.parse(pom);
+        }
+
+        File svnTemp = new File(targetDir, "svntemp");
+        DigestCache digests = new DigestCache(new File(svnTemp, DIGEST_CACHE));
+        if (null != knownDigests) {
+            // modification times are read on this machine's clock, which may
+            // be set apart from the clock the times were read from
+            long offset = System.currentTimeMillis() - created;
+            for (Map.Entry<String, DigestCache.Known> known : knownDigests
+                .entrySet()) {
+                digests.addKnown(known.getKey(), known.getValue().shift(
+                    offset));
+            }
+        }
+        try {
+            for (ImportItem item : items) {
+                boolean nullName = (null == item.getName())
+                    || (item.getName().length() < 1);
+                String finalName = nullName ? "" : SVNForceImport
+                    .variableReplace(spp, item.getName());
+                Item scanned = new Item(SVNForceImport.variableReplace(spp,
+                    item.getPath()));
+                result.items.add(scanned);
+
+                for (File match : SVNForceImport.matchFiles(SVNForceImport
+                    .variableReplace(spp, item.getPattern()), targetDir)) {
+                    for (Map.Entry<String, File> entry : SVNForceImport
+                        .expand(match, nullName ? match.getName() : finalName)
+                        .entrySet()) {
+                        File file = entry.getValue();
+                        if (file.isDirectory()) {
+                            scanned.folders.add(entry.getKey());
+                            continue;
+                        }
+                        if (!file.isFile() || !file.canRead()) {
+                            // only plain files can be streamed to the
+                            // controller
+                            result.errors.add("File/Directory not accessable: "
+                                + file.getAbsolutePath());
+                            continue;
+                        }
+                        scanned.files.add(new MatchedFile(file
+                            .getAbsolutePath(), entry.getKey(), file.length(),
+                            digests.digest(file, ContentDigest.MD5)));
+                    }
+                }
+            }
+        } finally {
+            result.bytesHashed = digests.getBytesDigested();
+            if (svnTemp.isDirectory() || svnTemp.mkdirs()) {
+                digests.save();
+            }
+        }
+        return result;
+    }
+}